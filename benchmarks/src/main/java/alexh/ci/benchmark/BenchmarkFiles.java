@@ -0,0 +1,115 @@
+package alexh.ci.benchmark;
+
+import alexh.ci.ProcessKiller;
+import alexh.ci.ProcessSampler;
+import alexh.ci.RunContext;
+import alexh.ci.RunMetrics;
+import alexh.ci.RunScheduler;
+import alexh.ci.RunStatuses;
+import alexh.ci.model.Job;
+import alexh.ci.model.JobCatalog;
+import alexh.ci.model.RunQueue;
+import alexh.ci.model.Script;
+import alexh.ci.model.WorkDirectories;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.util.Duration;
+import org.apache.commons.io.FileUtils;
+import org.zapodot.jackson.java8.JavaOptionalModule;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/** Shared set up for the benchmarks, jobs & logs are written to temporary directories */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {}
+
+    /** @return object mapper configured as the application's */
+    static ObjectMapper objectMapper() {
+        return Jackson.newObjectMapper().registerModule(new JavaOptionalModule());
+    }
+
+    static File tempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory("script-ci-" + prefix).toFile();
+    }
+
+    static void delete(File directory) throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    static Job job(String code) {
+        Script script = new Script();
+        script.code = code;
+        Job job = new Job();
+        job.okScript = script;
+        return job;
+    }
+
+    /**
+     * @return context writing statuses behind, sampling processes each second & killing them on daemon threads, as
+     *   the application's without a journal, with metrics in a registry of its own
+     */
+    static RunContext runContext() {
+        ProcessSampler sampler = new ProcessSampler(Duration.seconds(1), Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("process-sampler").setDaemon(true).build()));
+        sampler.start();
+        ProcessKiller killer = new ProcessKiller(Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("run-timeouts").setDaemon(true).build()),
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("run-kill-%d").setDaemon(true).build()));
+        return new RunContext(new RunStatuses(Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("run-status-writer").setDaemon(true).build())),
+            new RunMetrics(new MetricRegistry()), sampler, killer, Optional.empty());
+    }
+
+    /** Writes jobs with ids 1 to count directly into the jobs directory */
+    static void writeJobs(File jobsDirectory, int count, String code, RunContext context) {
+        for (int id = 1; id <= count; id++)
+            job(code).writeTo(new File(jobsDirectory, String.valueOf(id)), context);
+    }
+
+    /** Writes a log of lines of the given length, up to the size in bytes */
+    static void writeLog(File log, long size, int lineLength) throws IOException {
+        byte[] chunk = lines(1024 * 1024, lineLength);
+        try (OutputStream out = new FileOutputStream(log)) {
+            for (long written = 0; written < size; written += chunk.length)
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+        }
+    }
+
+    /** @return bytes of "x" lines with the given length including the newline */
+    static byte[] lines(int size, int lineLength) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'x');
+        for (int index = lineLength - 1; index < size; index += lineLength) bytes[index] = '\n';
+        return bytes;
+    }
+
+    static RunScheduler scheduler(ExecutorService workers, int maxConcurrentRuns) {
+        return new RunScheduler(workers, maxConcurrentRuns, 0, Collections.emptyMap());
+    }
+
+    /** @return work directories cloned per run, copied & removed on the calling thread */
+    static WorkDirectories workDirectories() {
+        return new WorkDirectories(WorkDirectories.Mode.CLONE, Runnable::run);
+    }
+
+    /** @return queue running jobs locally */
+    static RunQueue runQueue(JobCatalog catalog, RunScheduler scheduler, ScheduledExecutorService timer) {
+        return new RunQueue(catalog, scheduler, workDirectories(), timer, Optional.empty());
+    }
+
+    static ExecutorService workers(int threads) {
+        return Executors.newFixedThreadPool(threads);
+    }
+}
@@ -0,0 +1,95 @@
+package alexh.ci.benchmark;
+
+import alexh.ci.RunContext;
+import alexh.ci.RunScheduler;
+import alexh.ci.model.JobCatalog;
+import alexh.ci.model.WorkDirectories;
+import alexh.ci.resource.JobResource;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Job listing, creation & start up loading with the number of jobs on disk */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JobListingBenchmark {
+
+    private static final String CODE = "#!/bin/sh\necho listing\n";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int jobs;
+
+    private File jobsDirectory;
+    private RunContext context;
+    private JobCatalog catalog;
+    private ExecutorService workers;
+    private ScheduledExecutorService timer;
+    private JobResource resource;
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setUp() throws Exception {
+        jobsDirectory = BenchmarkFiles.tempDirectory("listing");
+        context = BenchmarkFiles.runContext();
+        BenchmarkFiles.writeJobs(jobsDirectory, jobs, CODE, context);
+
+        catalog = new JobCatalog(jobsDirectory, context);
+        catalog.start();
+        workers = BenchmarkFiles.workers(1);
+        timer = Executors.newSingleThreadScheduledExecutor();
+        objectMapper = BenchmarkFiles.objectMapper();
+        RunScheduler scheduler = BenchmarkFiles.scheduler(workers, 1);
+        resource = new JobResource(catalog, BenchmarkFiles.runQueue(catalog, scheduler, timer),
+            WorkDirectories.Mode.CLONE, objectMapper);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        catalog.stop();
+        workers.shutdown();
+        timer.shutdown();
+        BenchmarkFiles.delete(jobsDirectory);
+    }
+
+    /** first page of summary rows */
+    @Benchmark
+    public void listJobs() throws IOException {
+        objectMapper.writeValue(ByteStreams.nullOutputStream(),
+            resource.page(0, 100, "id,latestRun", null).getEntity());
+    }
+
+    /** last page, should cost the same as the first however many jobs there are */
+    @Benchmark
+    public void listLastJobs() throws IOException {
+        objectMapper.writeValue(ByteStreams.nullOutputStream(),
+            resource.page(Math.max(0, jobs - 100), 100, "id,latestRun", null).getEntity());
+    }
+
+    /** creates a job each invocation, so later iterations run against a few more jobs than the param */
+    @Benchmark
+    public Map createJob() throws Exception {
+        return resource.newJob(BenchmarkFiles.job(CODE));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10)
+    public JobCatalog loadCatalog() throws Exception {
+        JobCatalog loaded = new JobCatalog(jobsDirectory, context);
+        loaded.start();
+        loaded.stop();
+        return loaded;
+    }
+}
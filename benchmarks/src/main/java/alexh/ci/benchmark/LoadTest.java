@@ -0,0 +1,384 @@
+package alexh.ci.benchmark;
+
+import alexh.ci.ScriptCiApplication;
+import alexh.ci.ScriptCiConfiguration;
+import alexh.ci.model.RunQueue;
+import alexh.weak.Dynamic;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import io.dropwizard.setup.Environment;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Load test of the api over http, eg 500 dashboard clients polling while 50 jobs run
+ * <pre>
+ * java -cp target/benchmarks.jar alexh.ci.benchmark.LoadTest --jobs 50 --clients 500 --seconds 60
+ * </pre>
+ * Starts the application on a random local port with temporary jobs, seeds jobs whose scripts write a known amount
+ * of output & runs them, then has each client thread call a weighted mix of endpoints back to back. Reports
+ * throughput & latency percentiles per endpoint, & once runs have ended any output bytes lost. Exits 1 if any
+ * call failed or output was lost. Clients share the application's process, so leave cores for both
+ */
+public class LoadTest {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>() {{
+        put("jobs", "50");
+        put("clients", "500");
+        put("seconds", "60");
+        put("warmupSeconds", "5");
+        // weights of create, run, status & list calls
+        put("mix", "status=80,list=10,run=8,create=2");
+        // whether status calls include logs
+        put("statusLog", "false");
+        // whether clients poll with If-None-Match, as a browser would
+        put("etags", "false");
+        // each run writes linesPerSecond lines of lineLength bytes a second for scriptSeconds
+        put("scriptSeconds", "10");
+        put("linesPerSecond", "1000");
+        put("lineLength", "100");
+        // scheduler slots, runs of jobs created during the test queue for these too
+        put("maxConcurrentRuns", "100");
+    }};
+
+    private static final ObjectMapper mapper = BenchmarkFiles.objectMapper();
+
+    private enum Endpoint { CREATE, RUN, STATUS, LIST }
+
+    private final Map<String, String> options;
+    private final String apiUrl;
+    private final IntSupplier pendingRuns;
+    private final AtomicInteger latestJobId = new AtomicInteger();
+    private final Map<Endpoint, AtomicLong> errors = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, AtomicLong> notModified = new EnumMap<>(Endpoint.class);
+
+    private LoadTest(Map<String, String> options, String apiUrl, IntSupplier pendingRuns) {
+        this.options = options;
+        this.apiUrl = apiUrl;
+        this.pendingRuns = pendingRuns;
+        for (Endpoint endpoint : Endpoint.values()) {
+            errors.put(endpoint, new AtomicLong());
+            notModified.put(endpoint, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (int index = 0; index + 1 < args.length; index += 2) {
+            String name = args[index].replaceFirst("^--", "");
+            if (!DEFAULTS.containsKey(name)) throw new IllegalArgumentException("Unknown option " + args[index] +
+                ", options & defaults: " + DEFAULTS);
+            options.put(name, args[index + 1]);
+        }
+
+        File directory = BenchmarkFiles.tempDirectory("load");
+        LoadTestApplication application = new LoadTestApplication();
+        int exitCode = 1;
+        try {
+            application.run("server", writeConfig(directory, Integer.parseInt(options.get("maxConcurrentRuns")))
+                .getPath());
+            int port = ((ServerConnector) application.server.getConnectors()[0]).getLocalPort();
+            System.out.println("Load testing http://localhost:" + port + "/api with " + options);
+            Gauge<?> pending = application.metrics.getGauges().get(MetricRegistry.name(RunQueue.class, "pending"));
+            exitCode = new LoadTest(options, "http://localhost:" + port + "/api", () -> (Integer) pending.getValue())
+                .run();
+        }
+        finally {
+            if (application.server != null) application.server.stop();
+            BenchmarkFiles.delete(directory);
+        }
+        System.exit(exitCode);
+    }
+
+    /** Runs the application with the server kept to be stopped & metrics to check */
+    private static class LoadTestApplication extends ScriptCiApplication {
+        volatile Server server;
+        volatile MetricRegistry metrics;
+
+        @Override
+        public void run(ScriptCiConfiguration configuration, Environment environment) throws Exception {
+            super.run(configuration, environment);
+            metrics = environment.metrics();
+            environment.lifecycle().addServerLifecycleListener(server -> this.server = server);
+        }
+    }
+
+    /** @return config on a random port with all state in the directory & quiet */
+    private static File writeConfig(File directory, int maxConcurrentRuns) throws IOException {
+        File config = new File(directory, "config.yml");
+        try (PrintWriter writer = new PrintWriter(config, "UTF-8")) {
+            writer.println("server:");
+            writer.println("  type: simple");
+            writer.println("  applicationContextPath: /api");
+            writer.println("  adminContextPath: /admin");
+            writer.println("  connector: { type: http, port: 0 }");
+            writer.println("  requestLog: { appenders: [] }");
+            writer.println("logging: { level: WARN }");
+            writer.printf("jobsDirectory: '%s'%n", new File(directory, "jobs"));
+            writer.printf("runJournal: { file: '%s' }%n", new File(directory, "run-journal"));
+            writer.printf("scratch: { directory: '%s' }%n", new File(directory, "scratch"));
+            writer.printf("scheduler: { maxConcurrentRuns: %d }%n", maxConcurrentRuns);
+            writer.println("retention: { interval: 1 day }");
+        }
+        return config;
+    }
+
+    /** @return exit code, 1 if any call failed or output was lost */
+    private int run() throws Exception {
+        int jobs = Integer.parseInt(options.get("jobs"));
+        for (int job = 0; job < jobs; job++) call(Endpoint.CREATE, 0, Optional.empty());
+        for (int job = 1; job <= latestJobId.get(); job++) call(Endpoint.RUN, job, Optional.empty());
+        System.out.println("Seeded & started " + jobs + " jobs");
+
+        Map<Endpoint, Integer> mix = parseMix(options.get("mix"));
+        int clients = Integer.parseInt(options.get("clients"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmupSeconds")));
+        long measureNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("seconds")));
+        long measureStart = System.nanoTime() + warmupNanos;
+        long end = measureStart + measureNanos;
+
+        List<Client> clientList = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int index = 0; index < clients; index++) {
+            Client client = new Client(mix, measureStart, end);
+            Thread thread = new Thread(client, "load-client-" + index);
+            thread.start();
+            clientList.add(client);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+
+        boolean failed = report(clientList, measureNanos);
+        return checkOutput() && !failed ? 0 : 1;
+    }
+
+    private static Map<Endpoint, Integer> parseMix(String mix) {
+        Map<Endpoint, Integer> weights = new EnumMap<>(Endpoint.class);
+        for (String weight : mix.split(",")) {
+            String[] nameWeight = weight.trim().split("=");
+            weights.put(Endpoint.valueOf(nameWeight[0].trim().toUpperCase(Locale.ROOT)),
+                Integer.parseInt(nameWeight[1].trim()));
+        }
+        return weights;
+    }
+
+    /** Calls endpoints back to back, recording latencies of calls started in the measured period */
+    private class Client implements Runnable {
+        private final List<Endpoint> weighted = new ArrayList<>();
+        private final long measureStart;
+        private final long end;
+        private final Map<Endpoint, Latencies> latencies = new EnumMap<>(Endpoint.class);
+        /** ETags of the last responses by url, when polling with etags */
+        private final Map<String, String> etags = new HashMap<>();
+
+        Client(Map<Endpoint, Integer> mix, long measureStart, long end) {
+            mix.forEach((endpoint, weight) -> { for (int i = 0; i < weight; i++) weighted.add(endpoint); });
+            this.measureStart = measureStart;
+            this.end = end;
+            for (Endpoint endpoint : Endpoint.values()) latencies.put(endpoint, new Latencies());
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (long start = System.nanoTime(); start < end; start = System.nanoTime()) {
+                Endpoint endpoint = weighted.get(random.nextInt(weighted.size()));
+                int jobId = 1 + random.nextInt(Math.max(1, latestJobId.get()));
+                boolean ok;
+                try { ok = call(endpoint, jobId, Boolean.parseBoolean(options.get("etags")) ?
+                    Optional.of(etags) : Optional.empty()); }
+                catch (IOException ex) { ok = false; }
+                long latency = System.nanoTime() - start;
+                if (start < measureStart) continue;
+                latencies.get(endpoint).add(latency);
+                if (!ok) errors.get(endpoint).incrementAndGet();
+            }
+        }
+    }
+
+    /** @return whether the call succeeded, including 304 Not Modified */
+    private boolean call(Endpoint endpoint, int jobId, Optional<Map<String, String>> etags) throws IOException {
+        switch (endpoint) {
+            case CREATE:
+                Map<?, ?> created = post("/jobs", Optional.of(job()));
+                if (created == null) return false;
+                latestJobId.accumulateAndGet(Dynamic.from(created).get("id").convert().intoInteger(), Math::max);
+                return true;
+            case RUN:
+                return post("/jobs/" + jobId + "/run", Optional.empty()) != null;
+            case STATUS:
+                return get("/jobs/" + jobId + "/status/latest?log=" + options.get("statusLog"), endpoint, etags);
+            default:
+                return get("/jobs", endpoint, etags);
+        }
+    }
+
+    private Map<String, Object> job() {
+        int lineLength = Integer.parseInt(options.get("lineLength"));
+        String code = "#!/bin/sh\n" +
+            "for second in $(seq 1 " + options.get("scriptSeconds") + "); do\n" +
+            "  yes '" + Strings.repeat("x", lineLength - 1) + "' | head -n " + options.get("linesPerSecond") + "\n" +
+            "  sleep 1\n" +
+            "done\n";
+        return Collections.singletonMap("okScript", Collections.singletonMap("code", code));
+    }
+
+    /** @return output each run writes */
+    private long expectedRunOutput() {
+        return Long.parseLong(options.get("scriptSeconds")) * Long.parseLong(options.get("linesPerSecond")) *
+            Long.parseLong(options.get("lineLength"));
+    }
+
+    private boolean get(String path, Endpoint endpoint, Optional<Map<String, String>> etags) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl + path).openConnection();
+        if (etags.isPresent() && etags.get().containsKey(path))
+            connection.setRequestProperty("If-None-Match", etags.get().get(path));
+        int status = connection.getResponseCode();
+        drain(connection);
+        if (status == 304) notModified.get(endpoint).incrementAndGet();
+        else if (etags.isPresent() && connection.getHeaderField("ETag") != null)
+            etags.get().put(path, connection.getHeaderField("ETag"));
+        return status == 200 || status == 304;
+    }
+
+    /** @return response body, null if the call failed */
+    private Map<?, ?> post(String path, Optional<Object> body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (body.isPresent()) {
+            try (OutputStream out = connection.getOutputStream()) {
+                mapper.writeValue(out, body.get());
+            }
+        }
+        else connection.setFixedLengthStreamingMode(0);
+        int status = connection.getResponseCode();
+        byte[] response = drain(connection);
+        if (status >= 300) return null;
+        return response.length == 0 ? Collections.emptyMap() : mapper.readValue(response, Map.class);
+    }
+
+    /** @return body, read fully so the connection can be reused */
+    private static byte[] drain(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() >= 400 ? connection.getErrorStream() :
+            connection.getInputStream();
+        if (in == null) return new byte[0];
+        try (InputStream body = in) {
+            return ByteStreams.toByteArray(body);
+        }
+    }
+
+    /** @return whether any call failed */
+    private boolean report(List<Client> clients, long measureNanos) {
+        double seconds = measureNanos / 1e9;
+        System.out.printf("%n%-8s %10s %8s %8s %10s %9s %9s %9s %9s%n",
+            "endpoint", "calls", "errors", "304s", "calls/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        boolean failed = false;
+        for (Endpoint endpoint : Endpoint.values()) {
+            Latencies all = new Latencies();
+            clients.forEach(client -> all.addAll(client.latencies.get(endpoint)));
+            long[] sorted = all.sorted();
+            failed |= errors.get(endpoint).get() > 0;
+            System.out.printf("%-8s %10d %8d %8d %10.1f %9.2f %9.2f %9.2f %9.2f%n",
+                endpoint.name().toLowerCase(Locale.ROOT), sorted.length, errors.get(endpoint).get(),
+                notModified.get(endpoint).get(), sorted.length / seconds,
+                millis(percentile(sorted, 0.5)), millis(percentile(sorted, 0.99)),
+                millis(percentile(sorted, 0.999)), millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+        }
+        return failed;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) return 0;
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /** Waits for runs to end, then compares each run's stored output size to what its script wrote */
+    private boolean checkOutput() throws Exception {
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(
+            3 * Long.parseLong(options.get("scriptSeconds")) + 60);
+        List<Integer> jobIds = new ArrayList<>();
+        for (int job = 1; job <= latestJobId.get(); job++) jobIds.add(job);
+
+        // runs requested while running are pending, waiting for them to start & end
+        while ((!jobIds.isEmpty() || pendingRuns.getAsInt() > 0) && System.currentTimeMillis() < timeout) {
+            jobIds = jobIds.stream().filter(this::isRunning).collect(Collectors.toList());
+            if (!jobIds.isEmpty() || pendingRuns.getAsInt() > 0) Thread.sleep(1000);
+        }
+        if (!jobIds.isEmpty()) System.out.println("Jobs still running after waiting: " + jobIds);
+
+        long runs = 0, unfinished = 0, expected = 0, stored = 0, lost = 0;
+        for (int job = 1; job <= latestJobId.get(); job++) {
+            int latestRun = Dynamic.from(getJson("/jobs/" + job + "/status/latest?log=false")).get("run")
+                .maybe().map(run -> run.convert().intoInteger()).orElse(0);
+            for (int run = 1; run <= latestRun; run++) {
+                Dynamic status = Dynamic.from(getJson("/jobs/" + job + "/status/" + run + "?log=false"));
+                if (!status.get("ended").isPresent()) {
+                    unfinished++;
+                    continue;
+                }
+                long size = status.get("okScriptStatus").get("logSize").convert().intoLong();
+                runs++;
+                expected += expectedRunOutput();
+                stored += size;
+                lost += Math.max(0, expectedRunOutput() - size);
+            }
+        }
+        System.out.printf("%nRuns checked: %d, unfinished: %d, output expected: %d bytes, stored: %d bytes, " +
+            "lost: %d bytes%n", runs, unfinished, expected, stored, lost);
+        return lost == 0;
+    }
+
+    private boolean isRunning(int jobId) {
+        try {
+            return !Dynamic.from(getJson("/jobs/" + jobId + "/status/latest?log=false")).get("ended").isPresent();
+        }
+        catch (IOException ex) { return true; }
+    }
+
+    private Map<?, ?> getJson(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl + path).openConnection();
+        if (connection.getResponseCode() != 200)
+            throw new IOException("GET " + path + " responded " + connection.getResponseCode());
+        return mapper.readValue(drain(connection), Map.class);
+    }
+
+    /** Growable array of latencies in nanoseconds */
+    private static class Latencies {
+        private long[] values = new long[1024];
+        private int count;
+
+        void add(long nanos) {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = nanos;
+        }
+
+        void addAll(Latencies latencies) {
+            for (int index = 0; index < latencies.count; index++) add(latencies.values[index]);
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
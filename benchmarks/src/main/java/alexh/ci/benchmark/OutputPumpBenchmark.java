@@ -0,0 +1,99 @@
+package alexh.ci.benchmark;
+
+import alexh.ci.OutputPump;
+import alexh.ci.RunContext;
+import alexh.ci.ScriptRunner;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output throughput of a script producing high-volume output, reported as bytes/s & lines/s secondary
+ * results. {@link #pump} isolates the pump from process start up, {@link #runScript} covers a real script
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputPumpBenchmark {
+
+    @Param({"10", "100"})
+    public int megabytes;
+
+    @Param({"20", "200"})
+    public int lineLength;
+
+    private byte[] output;
+    private long lineCount;
+    private File directory;
+    private File script;
+    private RunContext context;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Output {
+        public long bytes;
+        public long lines;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            lines = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        output = BenchmarkFiles.lines(megabytes * 1024 * 1024, lineLength);
+        lineCount = output.length / lineLength;
+
+        directory = BenchmarkFiles.tempDirectory("pump");
+        context = BenchmarkFiles.runContext();
+        script = new File(directory, "script-o.sh");
+        try (PrintWriter writer = new PrintWriter(script)) {
+            writer.println("#!/bin/sh");
+            writer.printf("yes '%0" + (lineLength - 1) + "d' | tr 0 x | head -c %d%n", 0, output.length);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public long pump(Output counters) throws IOException {
+        long[] lines = {0};
+        long pumped = new OutputPump(ByteStreams.nullOutputStream(), Optional.of(text -> lines[0] += count(text)))
+            .pump(new ByteArrayInputStream(output));
+        counters.bytes += pumped;
+        counters.lines += lines[0];
+        return pumped;
+    }
+
+    @Benchmark
+    public int runScript(Output counters) {
+        int exit = new ScriptRunner(script.getAbsolutePath())
+            .outputTo(new File(directory, "runs"))
+            .useDirectory(new File(directory, "work"))
+            .inContext(context)
+            .run()
+            .join();
+        counters.bytes += output.length;
+        counters.lines += lineCount;
+        return exit;
+    }
+
+    private static int count(String lines) {
+        int count = 0;
+        for (int index = lines.indexOf('\n'); index != -1; index = lines.indexOf('\n', index + 1)) count++;
+        return count;
+    }
+}
@@ -0,0 +1,56 @@
+package alexh.ci.benchmark;
+
+import alexh.ci.RunContext;
+import alexh.ci.RunScheduler;
+import alexh.ci.model.JobCatalog;
+import alexh.ci.model.WorkDirectories;
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end overhead of a run of a trivial script: run & work directory allocation, scheduling, process start,
+ * output pumping & status writes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RunOverheadBenchmark {
+
+    private static final int JOB = 1;
+
+    private File jobsDirectory;
+    private JobCatalog catalog;
+    private ExecutorService workers;
+    private RunScheduler scheduler;
+    private WorkDirectories workDirectories;
+
+    @Setup
+    public void setUp() throws Exception {
+        jobsDirectory = BenchmarkFiles.tempDirectory("run");
+        RunContext context = BenchmarkFiles.runContext();
+        BenchmarkFiles.writeJobs(jobsDirectory, 1, "#!/bin/sh\n", context);
+
+        catalog = new JobCatalog(jobsDirectory, context);
+        catalog.start();
+        workers = BenchmarkFiles.workers(1);
+        scheduler = BenchmarkFiles.scheduler(workers, 1);
+        workDirectories = BenchmarkFiles.workDirectories();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        catalog.stop();
+        workers.shutdown();
+        BenchmarkFiles.delete(jobsDirectory);
+    }
+
+    @Benchmark
+    public int run() {
+        return catalog.get(JOB).get().run(scheduler.executor(String.valueOf(JOB)), workDirectories).exit.join();
+    }
+}
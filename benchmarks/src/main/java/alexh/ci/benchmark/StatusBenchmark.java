@@ -0,0 +1,94 @@
+package alexh.ci.benchmark;
+
+import alexh.Fluent;
+import alexh.ci.RunContext;
+import alexh.ci.RunScheduler;
+import alexh.ci.model.JobCatalog;
+import alexh.ci.model.WorkDirectories;
+import alexh.ci.resource.JobResource;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Latency of the run status & log endpoints for a finished run with a log of each size */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StatusBenchmark {
+
+    private static final int JOB = 1;
+    private static final int RUN = 1;
+
+    /** 1 KB, 1 MB, 100 MB, 500 MB */
+    @Param({"1024", "1048576", "104857600", "524288000"})
+    public long logBytes;
+
+    private File jobsDirectory;
+    private JobCatalog catalog;
+    private ExecutorService workers;
+    private ScheduledExecutorService timer;
+    private JobResource resource;
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setUp() throws Exception {
+        jobsDirectory = BenchmarkFiles.tempDirectory("status");
+        RunContext context = BenchmarkFiles.runContext();
+        BenchmarkFiles.writeJobs(jobsDirectory, 1, "#!/bin/sh\necho status\n", context);
+
+        File runDirectory = new File(jobsDirectory, JOB + "/runs/" + RUN);
+        runDirectory.mkdirs();
+        BenchmarkFiles.writeLog(new File(runDirectory, "script-o.sh-out.log"), logBytes, 100);
+        String now = Instant.now().toString();
+        context.statuses.update(new File(runDirectory, "script-o.sh-status.json"), new Fluent.LinkedHashMap<>()
+            .append("queued", now)
+            .append("started", now)
+            .append("ended", now)
+            .append("exitCode", 0));
+        context.statuses.write();
+
+        catalog = new JobCatalog(jobsDirectory, context);
+        catalog.start();
+        workers = BenchmarkFiles.workers(1);
+        timer = Executors.newSingleThreadScheduledExecutor();
+        objectMapper = BenchmarkFiles.objectMapper();
+        RunScheduler scheduler = BenchmarkFiles.scheduler(workers, 1);
+        resource = new JobResource(catalog, BenchmarkFiles.runQueue(catalog, scheduler, timer),
+            WorkDirectories.Mode.CLONE, objectMapper);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        catalog.stop();
+        workers.shutdown();
+        timer.shutdown();
+        BenchmarkFiles.delete(jobsDirectory);
+    }
+
+    @Benchmark
+    public void statusWithLog() throws IOException {
+        ((StreamingOutput) resource.jobStatus(JOB, RUN, true, null).getEntity()).write(ByteStreams.nullOutputStream());
+    }
+
+    @Benchmark
+    public void statusWithoutLog() throws IOException {
+        objectMapper.writeValue(ByteStreams.nullOutputStream(), resource.jobStatus(JOB, RUN, false, null).getEntity());
+    }
+
+    @Benchmark
+    public Map logTail() throws IOException {
+        return resource.runLog(JOB, RUN, "script-o.sh", Math.max(0, logBytes - 65536), 65536);
+    }
+}
@@ -0,0 +1,155 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.US_ASCII;
+import static com.google.common.base.Preconditions.checkState;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Token index of an output log, "{log}.idx", listing each distinct token of the log once in sorted order so
+ * searches can skip logs without a token. Tokens are ASCII letter, digit & underscore runs of 2-64 characters,
+ * lowercased. Logs with too many distinct tokens, eg full of hashes, get an index marked as overflowed & are
+ * always searched
+ */
+public class LogIndex {
+
+    private static final int MIN_TOKEN = 2;
+    private static final int MAX_TOKEN = 64;
+    private static final int MAX_TOKENS = 200_000;
+    /** sorts before any token */
+    private static final String OVERFLOW = "*";
+
+    private LogIndex() {}
+
+    public static File indexFile(File log) {
+        return new File(log.getPath() + ".idx");
+    }
+
+    /** @return distinct tokens of the text, in order of appearance */
+    public static Set<String> tokens(CharSequence text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int index = 0; index <= text.length(); index++) {
+            boolean tokenChar = index < text.length() && isTokenChar(text.charAt(index));
+            if (tokenChar && start == -1) start = index;
+            else if (!tokenChar && start != -1) {
+                int length = index - start;
+                if (length >= MIN_TOKEN && length <= MAX_TOKEN)
+                    tokens.add(text.subSequence(start, index).toString().toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return runs of token characters in the text too short or too long to be tokens, in order of appearance. A
+     *   token search can't find these
+     */
+    public static List<String> untokenized(CharSequence text) {
+        List<String> untokenized = new ArrayList<>();
+        int start = -1;
+        for (int index = 0; index <= text.length(); index++) {
+            boolean tokenChar = index < text.length() && isTokenChar(text.charAt(index));
+            if (tokenChar && start == -1) start = index;
+            else if (!tokenChar && start != -1) {
+                int length = index - start;
+                if (length < MIN_TOKEN || length > MAX_TOKEN) untokenized.add(text.subSequence(start, index).toString());
+                start = -1;
+            }
+        }
+        return untokenized;
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+
+    /**
+     * @return false if the log's index shows it's missing one of the tokens, true if it may have them all,
+     *   including when the log has no usable index
+     */
+    public static boolean mayContainAll(File log, Collection<String> tokens) {
+        File index = indexFile(log);
+        if (!index.exists()) return true;
+        try (FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() == 0) return tokens.isEmpty();
+            MappedByteBuffer sorted = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (sorted.get(0) == OVERFLOW.charAt(0)) return true;
+            // tokens too short or long to be indexed can't rule a log out
+            return tokens.stream()
+                .filter(token -> token.length() >= MIN_TOKEN && token.length() <= MAX_TOKEN)
+                .allMatch(token -> contains(sorted, token.getBytes(US_ASCII)));
+        }
+        catch (IOException ex) { return true; }
+    }
+
+    /** binary search of newline separated sorted tokens */
+    private static boolean contains(MappedByteBuffer sorted, byte[] token) {
+        int low = 0, high = sorted.limit();
+        while (low < high) {
+            // start of the line containing the midpoint
+            int line = (low + high) >>> 1;
+            while (line > low && sorted.get(line - 1) != '\n') line--;
+
+            int end = line;
+            while (end < sorted.limit() && sorted.get(end) != '\n') end++;
+            int comparison = compare(sorted, line, end, token);
+            if (comparison == 0) return true;
+            if (comparison < 0) low = end + 1;
+            else high = line;
+        }
+        return false;
+    }
+
+    private static int compare(MappedByteBuffer sorted, int start, int end, byte[] token) {
+        for (int index = 0; index < Math.min(end - start, token.length); index++) {
+            int difference = (sorted.get(start + index) & 0xff) - (token[index] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return (end - start) - token.length;
+    }
+
+    /** Collects the tokens of output as it's written */
+    public static class Builder {
+        private final Set<String> tokens = new HashSet<>();
+        /** trailing partial token of output cut mid line */
+        private String partialToken = "";
+        private boolean overflowed;
+
+        /** @param lines output, usually whole lines */
+        public synchronized void add(String lines) {
+            if (overflowed) return;
+            String text = partialToken + lines;
+            int end = text.length();
+            while (end > 0 && isTokenChar(text.charAt(end - 1))) end--;
+            // an overlong partial token is only kept long enough to still be too long once complete
+            partialToken = text.substring(Math.max(end, text.length() - MAX_TOKEN - 1));
+
+            tokens.addAll(tokens(text.substring(0, end)));
+            if (tokens.size() > MAX_TOKENS) {
+                overflowed = true;
+                tokens.clear();
+            }
+        }
+
+        /** Writes the index of the log */
+        public synchronized void write(File log) throws IOException {
+            add("\n");
+            List<String> sorted = overflowed ? Collections.singletonList(OVERFLOW) : new ArrayList<>(tokens);
+            Collections.sort(sorted);
+
+            File partial = new File(indexFile(log).getPath() + ".tmp");
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partial))) {
+                for (String token : sorted) {
+                    out.write(token.getBytes(US_ASCII));
+                    out.write('\n');
+                }
+            }
+            checkState(partial.renameTo(indexFile(log)), "Failed to rename %s", partial);
+        }
+    }
+}
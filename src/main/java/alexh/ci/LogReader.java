@@ -0,0 +1,157 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import alexh.Fluent;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads output logs without loading the rest of the file. Logs are addressed by their plain location,
+ * a log that has since been compressed to "{name}.gz" is read transparently
+ */
+public class LogReader {
+
+    private LogReader() {}
+
+    /** @return compressed location of the log */
+    public static File compressed(File log) {
+        return new File(log.getPath() + ".gz");
+    }
+
+    public static boolean exists(File log) {
+        return log.exists() || compressed(log).exists();
+    }
+
+    /** @return uncompressed size in bytes, 0 if the log doesn't exist */
+    public static long size(File log) throws IOException {
+        if (log.exists() || !compressed(log).exists()) return log.length();
+
+        // gzip trailer ends with the uncompressed size mod 2^32, fine for logs under 4 GB
+        try (RandomAccessFile file = new RandomAccessFile(compressed(log), "r")) {
+            if (file.length() < 4) return 0;
+            file.seek(file.length() - 4);
+            return Integer.reverseBytes(file.readInt()) & 0xffffffffL;
+        }
+    }
+
+    /** @return stream of the uncompressed log contents */
+    public static InputStream open(File log) throws IOException {
+        if (log.exists() || !compressed(log).exists()) return new FileInputStream(log);
+        return new GZIPInputStream(new FileInputStream(compressed(log)), 64 * 1024);
+    }
+
+    public static String readFully(File log) throws IOException {
+        try (InputStream in = open(log)) {
+            return new String(ByteStreams.toByteArray(in), UTF_8);
+        }
+    }
+
+    /** Compresses the log to "{name}.gz" & removes the original */
+    public static void compress(File log) throws IOException {
+        File compressed = compressed(log);
+        File partial = new File(compressed.getPath() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(partial), 64 * 1024)) {
+            Files.copy(log, out);
+        }
+        checkState(partial.renameTo(compressed), "Failed to rename %s", partial);
+        checkState(log.delete(), "Failed to delete %s", log);
+    }
+
+    /** Writes the log as a JSON string value, copied in chunks rather than read into memory */
+    public static void writeJsonString(File log, JsonGenerator generator) throws IOException {
+        JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        char[] buffer = new char[8 * 1024];
+        generator.writeRawValue("\"");
+        try (Reader reader = new InputStreamReader(open(log), UTF_8)) {
+            int filled = 0;
+            for (int read = reader.read(buffer); read != -1; read = reader.read(buffer, filled, buffer.length - filled)) {
+                filled += read;
+                // hold back a high surrogate so pairs aren't split across writes
+                int length = Character.isHighSurrogate(buffer[filled - 1]) ? filled - 1 : filled;
+                writeQuoted(generator, encoder, new String(buffer, 0, length));
+                filled -= length;
+                if (filled > 0) buffer[0] = buffer[length];
+            }
+            if (filled > 0) writeQuoted(generator, encoder, new String(buffer, 0, filled));
+        }
+        generator.writeRaw('"');
+    }
+
+    private static void writeQuoted(JsonGenerator generator, JsonStringEncoder encoder, String text) throws IOException {
+        char[] quoted = encoder.quoteAsString(text);
+        generator.writeRaw(quoted, 0, quoted.length);
+    }
+
+    /**
+     * Reads up to max bytes of the log starting at the byte offset. While a script is writing the log a trailing
+     * partial UTF-8 character is left for the next read, otherwise the read always reaches the end of the log &
+     * bytes that aren't valid UTF-8 are decoded as replacement characters
+     * @return result map
+     *   {
+     *     from: 0,
+     *     next: 1024,
+     *     size: 4096,
+     *     log: "..."
+     *   }
+     */
+    public static Map<String, Object> read(File log, long from, int max) throws IOException {
+        checkArgument(from >= 0, "from must not be negative");
+        checkArgument(max >= 4, "max must be at least 4, the longest UTF-8 character");
+
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        long size = 0;
+        if (!log.exists() && compressed(log).exists()) {
+            size = size(log);
+            if (from < size) {
+                buffer = ByteBuffer.allocate((int) Math.min(max, size - from));
+                try (InputStream in = open(log)) {
+                    ByteStreams.skipFully(in, from);
+                    buffer.limit(ByteStreams.read(in, buffer.array(), 0, buffer.capacity()));
+                }
+            }
+        }
+        else if (log.exists()) {
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+                size = channel.size();
+                if (from < size) {
+                    buffer = ByteBuffer.allocate((int) Math.min(max, size - from));
+                    while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0);
+                    buffer.flip();
+                }
+            }
+        }
+
+        boolean ended = !OutputBroadcast.live(log).isPresent();
+        int length = ended && from + buffer.limit() == size ? buffer.limit() : completeUtf8Length(buffer);
+        return new Fluent.LinkedHashMap<String, Object>()
+            .append("from", from)
+            .append("next", from + length)
+            .append("size", size)
+            .append("log", new String(buffer.array(), 0, length, UTF_8));
+    }
+
+    /** @return length of the buffer excluding any trailing incomplete UTF-8 sequence that may yet complete */
+    private static int completeUtf8Length(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        for (int index = limit - 1; index >= Math.max(0, limit - 4); index--) {
+            int b = buffer.get(index) & 0xff;
+            if ((b & 0xc0) == 0x80) continue; // continuation byte
+
+            // 0xf8 & above never start a sequence, so are complete as a replacement character
+            int sequenceLength = b < 0x80 || b >= 0xf8 ? 1 : b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+            return index + sequenceLength > limit ? index : limit;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,196 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import alexh.Fluent;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Searches the output logs of runs line by line, in run order. Token searches skip logs whose {@link LogIndex}
+ * rules them out. Plain logs are scanned memory mapped a window at a time & compressed logs streamed, so memory
+ * use doesn't depend on log size. A batch of runs is scanned in parallel, batches continue until the limit
+ */
+public class LogSearch {
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int MAP_WINDOW = 64 * 1024 * 1024;
+    /** longest line text returned, longer lines are cut */
+    private static final int MAX_TEXT = 1000;
+
+    private static final ExecutorService searchers = Executors.newFixedThreadPool(PARALLELISM,
+        new ThreadFactoryBuilder().setNameFormat("log-search-%d").setDaemon(true).build());
+
+    private final Predicate<String> lineMatches;
+    private final Predicate<File> logMayMatch;
+    private final int limit;
+
+    private LogSearch(Predicate<String> lineMatches, Predicate<File> logMayMatch, int limit) {
+        this.lineMatches = lineMatches;
+        this.logMayMatch = logMayMatch;
+        this.limit = limit;
+    }
+
+    /** @return search for lines with all the query's tokens, case insensitive, see {@link LogIndex#tokens} */
+    public static LogSearch forTokens(String query, int limit) {
+        Set<String> tokens = LogIndex.tokens(query);
+        checkArgument(!tokens.isEmpty(), "No tokens in query");
+        return new LogSearch(
+            line -> {
+                String lowerCase = line.toLowerCase(Locale.ROOT);
+                // cheap substring check before tokenizing
+                return tokens.stream().allMatch(lowerCase::contains) && LogIndex.tokens(line).containsAll(tokens);
+            },
+            log -> LogIndex.mayContainAll(log, tokens),
+            limit);
+    }
+
+    /** @return search for lines the pattern is found in */
+    public static LogSearch forPattern(Pattern pattern, int limit) {
+        return new LogSearch(line -> pattern.matcher(line).find(), log -> true, limit);
+    }
+
+    /**
+     * @param runDirectories run directories, named by run id, in the order to search
+     * @return first matching lines up to the limit
+     *   {
+     *     matches: [
+     *       { run: 3, script: "script-o.sh", line: 120, text: "..." }
+     *     ],
+     *     truncated: true
+     *   }
+     */
+    public Map<String, Object> search(List<File> runDirectories) throws InterruptedException {
+        List<Map<String, Object>> matches = new ArrayList<>();
+        for (int start = 0; start < runDirectories.size() && matches.size() <= limit; start += PARALLELISM) {
+            List<Future<List<Map<String, Object>>>> batch = runDirectories
+                .subList(start, Math.min(start + PARALLELISM, runDirectories.size())).stream()
+                .map(runDirectory -> searchers.submit(() -> searchRun(runDirectory)))
+                .collect(Collectors.toList());
+            for (Future<List<Map<String, Object>>> run : batch) {
+                try { matches.addAll(run.get()); }
+                catch (ExecutionException ex) { throw Throwables.propagate(ex.getCause()); }
+            }
+        }
+
+        return new Fluent.LinkedHashMap<String, Object>()
+            .append("matches", matches.subList(0, Math.min(limit, matches.size())))
+            .append("truncated", matches.size() > limit);
+    }
+
+    /** @return up to limit + 1 matches of the run's logs, in script name order */
+    private List<Map<String, Object>> searchRun(File runDirectory) throws IOException {
+        String[] names = runDirectory.list();
+        List<String> scripts = names == null ? Collections.emptyList() : Arrays.stream(names)
+            .filter(name -> name.endsWith("-out.log") || name.endsWith("-out.log.gz"))
+            .map(name -> name.replaceFirst("-out\\.log(\\.gz)?$", ""))
+            .distinct()
+            .sorted()
+            .collect(Collectors.toList());
+
+        List<Map<String, Object>> matches = new ArrayList<>();
+        for (String script : scripts) {
+            File log = new File(runDirectory, script + "-out.log");
+            if (matches.size() > limit || !logMayMatch.test(log)) continue;
+            int run = Integer.parseInt(runDirectory.getName());
+            LineVisitor visitor = (lineNumber, line) -> {
+                if (lineMatches.test(line)) matches.add(new Fluent.LinkedHashMap<String, Object>()
+                    .append("run", run)
+                    .append("script", script)
+                    .append("line", lineNumber)
+                    .append("text", line.length() > MAX_TEXT ? line.substring(0, MAX_TEXT) : line));
+                return matches.size() <= limit;
+            };
+            try {
+                if (log.exists()) scanMapped(log, visitor);
+                else if (LogReader.exists(log)) scanStreamed(log, visitor);
+            }
+            catch (NoSuchFileException | FileNotFoundException ex) {
+                // removed, or replaced by its compressed log, during the search
+            }
+        }
+        return matches;
+    }
+
+    private interface LineVisitor {
+        /** @return whether to continue */
+        boolean visit(int lineNumber, String line);
+    }
+
+    private static void scanMapped(File log, LineVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            int lineNumber = 1;
+            byte[] line = new byte[1024];
+
+            while (position < size) {
+                int window = (int) Math.min(MAP_WINDOW, size - position);
+                boolean lastWindow = position + window == size;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+
+                int start = 0;
+                for (int index = 0; index < window; index++) {
+                    if (buffer.get(index) != '\n') continue;
+                    line = copy(buffer, start, index, line);
+                    if (!visitor.visit(lineNumber++, decode(line, index - start))) return;
+                    start = index + 1;
+                }
+
+                if (start == 0 && !lastWindow) {
+                    // a line longer than the window is searched in window sized pieces
+                    line = copy(buffer, 0, window, line);
+                    if (!visitor.visit(lineNumber, decode(line, window))) return;
+                    position += window;
+                }
+                else if (lastWindow) {
+                    line = copy(buffer, start, window, line);
+                    if (start < window) visitor.visit(lineNumber, decode(line, window - start));
+                    position = size;
+                }
+                // the next window starts with the partial line
+                else position += start;
+            }
+        }
+    }
+
+    /** @return array holding the buffer's bytes from start to end, the given array if large enough */
+    private static byte[] copy(MappedByteBuffer buffer, int start, int end, byte[] array) {
+        byte[] into = array.length >= end - start ? array : new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.get(into, 0, end - start);
+        return into;
+    }
+
+    private static String decode(byte[] line, int length) {
+        if (length > 0 && line[length - 1] == '\r') length--;
+        return new String(line, 0, length, UTF_8);
+    }
+
+    private static void scanStreamed(File log, LineVisitor visitor) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(LogReader.open(log), UTF_8))) {
+            int lineNumber = 1;
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+                if (!visitor.visit(lineNumber++, line)) return;
+        }
+    }
+}
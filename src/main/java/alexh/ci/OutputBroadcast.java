@@ -0,0 +1,118 @@
+package alexh.ci;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans out a running script's output to any number of subscribers in chunks of whole lines. Recent output is
+ * kept in a bounded replay buffer for late subscribers, a subscriber that falls too far behind is dropped
+ * rather than slowing the publisher
+ */
+public class OutputBroadcast {
+
+    private static final int REPLAY_CHUNKS = 1000;
+    private static final int REPLAY_CHARS = 1024 * 1024;
+    private static final int SUBSCRIBER_BACKLOG = 256;
+
+    private static final Map<File, OutputBroadcast> live = new ConcurrentHashMap<>();
+
+    /** @return new broadcast for the output log, live until closed */
+    public static OutputBroadcast open(File outLog) {
+        OutputBroadcast broadcast = new OutputBroadcast(outLog.getAbsoluteFile());
+        live.put(broadcast.outLog, broadcast);
+        return broadcast;
+    }
+
+    /** @return broadcast of a script currently writing to the output log */
+    public static Optional<OutputBroadcast> live(File outLog) {
+        return Optional.ofNullable(live.get(outLog.getAbsoluteFile()));
+    }
+
+    private final File outLog;
+    private final ArrayDeque<String> replay = new ArrayDeque<>();
+    private final Set<Subscription> subscribers = new HashSet<>();
+    private int replayChars;
+    private boolean closed;
+
+    private OutputBroadcast(File outLog) {
+        this.outLog = outLog;
+    }
+
+    /** @param lines output chunk, usually ending with a newline */
+    public synchronized void publish(String lines) {
+        replay.add(lines);
+        replayChars += lines.length();
+        while (replay.size() > REPLAY_CHUNKS || replayChars > REPLAY_CHARS && replay.size() > 1)
+            replayChars -= replay.remove().length();
+
+        for (Iterator<Subscription> it = subscribers.iterator(); it.hasNext();) {
+            Subscription subscription = it.next();
+            if (!subscription.lines.offer(lines)) {
+                subscription.dropped = true;
+                it.remove();
+            }
+        }
+    }
+
+    /** Marks the output as complete, subscribers finish once they have consumed the remaining output */
+    public synchronized void close() {
+        closed = true;
+        subscribers.forEach(subscription -> subscription.lines.offer(Subscription.WAKE));
+        subscribers.clear();
+        live.remove(outLog, this);
+    }
+
+    /** @return subscription starting with the replay buffer followed by new output as it's published */
+    public synchronized Subscription subscribe() {
+        Subscription subscription = new Subscription(this);
+        subscription.lines.addAll(replay);
+        if (!closed) subscribers.add(subscription);
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        subscribers.remove(subscription);
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public static class Subscription implements AutoCloseable {
+
+        /** wakes a polling subscriber without being output itself */
+        private static final String WAKE = new String();
+
+        private final OutputBroadcast broadcast;
+        private final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>(REPLAY_CHUNKS + SUBSCRIBER_BACKLOG);
+        private volatile boolean dropped;
+
+        private Subscription(OutputBroadcast broadcast) {
+            this.broadcast = broadcast;
+        }
+
+        /** @return next output chunk, or empty if none arrived within the timeout */
+        public Optional<String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+            String line = lines.poll(timeout, unit);
+            return line == WAKE ? Optional.empty() : Optional.ofNullable(line);
+        }
+
+        /** @return true when no more output will be available */
+        public boolean isFinished() {
+            return (dropped || broadcast.isClosed()) && (lines.isEmpty() || lines.peek() == WAKE);
+        }
+
+        /** @return true if this subscriber fell too far behind and stopped receiving output */
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        @Override
+        public void close() {
+            broadcast.unsubscribe(this);
+        }
+    }
+}
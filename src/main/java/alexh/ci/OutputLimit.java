@@ -0,0 +1,45 @@
+package alexh.ci;
+
+import com.google.common.collect.ImmutableMap;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * Bounds the output stored of each of a job's scripts. Output beyond the first headKb & last tailKb is elided,
+ * replaced by a marker counting the elided bytes, & lines beyond linesPerSecond are dropped. Output is still
+ * read from the script as fast as it's written, so a noisy script never blocks on its output
+ */
+public class OutputLimit {
+
+    /** largest tail kept, as the tail is held in memory until the script ends */
+    private static final int MAX_TAIL_KB = 64 * 1024;
+
+    public static final OutputLimit NONE = new OutputLimit();
+
+    /** output kept from the start, 0 with tailKb 0 for no size limit */
+    public int headKb;
+    /** output kept from the end, 0 with headKb 0 for no size limit */
+    public int tailKb;
+    /** most lines kept in a second, 0 for no rate limit */
+    public int linesPerSecond;
+
+    public void validateIn() {
+        if (headKb < 0 || tailKb < 0 || tailKb > MAX_TAIL_KB || linesPerSecond < 0)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Invalid OutputLimit#headKb/tailKb/linesPerSecond, tailKb " +
+                    "may be at most " + MAX_TAIL_KB))
+                .build());
+    }
+
+    public boolean limitsSize() {
+        return headKb > 0 || tailKb > 0;
+    }
+
+    public boolean limitsRate() {
+        return linesPerSecond > 0;
+    }
+
+    public boolean limits() {
+        return limitsSize() || limitsRate();
+    }
+}
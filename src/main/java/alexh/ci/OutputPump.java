@@ -0,0 +1,285 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Copies raw process output into a log in large batches. Writes happen when the buffer fills, when the
+ * process has nothing more to read right now or at least every flush interval. Buffers belong to the
+ * pumping thread, so are reused across every run on a scheduler slot. An {@link OutputLimit} drops lines over
+ * its rate & elides the log between its head & tail, output is read at full speed either way
+ */
+public class OutputPump {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private final OutputStream out;
+    private final Optional<Consumer<String>> lineListener;
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream(0);
+    private final int linesPerSecond;
+    private final Optional<HeadTail> headTail;
+    private final Optional<RunMetrics> metrics;
+    private long bytes;
+    private boolean lineStart = true;
+    private boolean droppingLines;
+    private long rateWindowStart = System.nanoTime();
+    private int windowLines;
+    private long unreportedDroppedLines;
+    private long droppedLines;
+
+    /**
+     * @param out raw output destination
+     * @param lineListener optional consumer of output decoded as UTF-8, always given whole lines except
+     *                     for overlong lines & the end of the output
+     */
+    public OutputPump(OutputStream out, Optional<Consumer<String>> lineListener) {
+        this(out, lineListener, OutputLimit.NONE, Optional.empty());
+    }
+
+    /**
+     * @param limit bounds of the output written out & given to the line listener
+     * @param metrics records the output read, before any limit
+     */
+    public OutputPump(OutputStream out, Optional<Consumer<String>> lineListener, OutputLimit limit,
+                      Optional<RunMetrics> metrics) {
+        this.headTail = limit.limitsSize() ? Optional.of(new HeadTail(out, limit)) : Optional.empty();
+        this.out = headTail.isPresent() ? headTail.get() : out;
+        this.lineListener = lineListener;
+        this.linesPerSecond = limit.linesPerSecond;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Copies input until it ends, a limited log is complete once this returns
+     * @return number of bytes read
+     */
+    public long pump(InputStream in) throws IOException {
+        byte[] buffer = buffers.get();
+        int filled = 0;
+        long lastFlush = System.nanoTime();
+
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer, filled, buffer.length - filled)) {
+            filled += read;
+            if (filled == buffer.length || in.available() == 0 || System.nanoTime() - lastFlush > FLUSH_INTERVAL_NANOS) {
+                write(buffer, filled);
+                filled = 0;
+                lastFlush = System.nanoTime();
+            }
+        }
+        write(buffer, filled);
+        reportDroppedLines();
+        if (headTail.isPresent()) headTail.get().finish();
+        out.flush();
+
+        if (partialLine.size() > 0) publish(partialLine.toByteArray(), 0, partialLine.size());
+        return bytes;
+    }
+
+    /** @return lines dropped as over the rate limit */
+    public long droppedLines() {
+        return droppedLines;
+    }
+
+    /** @return bytes elided between the head & tail of the log */
+    public long elidedBytes() {
+        return headTail.map(HeadTail::elidedBytes).orElse(0L);
+    }
+
+    private void write(byte[] buffer, int length) throws IOException {
+        if (length == 0) return;
+        bytes += length;
+        if (metrics.isPresent()) metrics.get().output(length, countLines(buffer, length));
+        if (linesPerSecond > 0) writeRateLimited(buffer, length);
+        else emit(buffer, 0, length);
+    }
+
+    /** emits the lines within the rate limit, a run of dropped lines is followed by a marker counting them */
+    private void writeRateLimited(byte[] buffer, int length) throws IOException {
+        int keptFrom = 0;
+        for (int index = 0; index < length; index++) {
+            if (lineStart) {
+                boolean drop = !allowLine();
+                if (drop && !droppingLines) emit(buffer, keptFrom, index);
+                else if (!drop && droppingLines) {
+                    reportDroppedLines();
+                    keptFrom = index;
+                }
+                droppingLines = drop;
+            }
+            lineStart = buffer[index] == '\n';
+        }
+        if (!droppingLines) emit(buffer, keptFrom, length);
+    }
+
+    private boolean allowLine() {
+        if (windowLines < linesPerSecond) {
+            windowLines++;
+            return true;
+        }
+        // only check the time once the window's lines are used up
+        long now = System.nanoTime();
+        if (now - rateWindowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            rateWindowStart = now;
+            windowLines = 1;
+            return true;
+        }
+        unreportedDroppedLines++;
+        droppedLines++;
+        return false;
+    }
+
+    private void reportDroppedLines() throws IOException {
+        if (unreportedDroppedLines == 0) return;
+        byte[] marker = String.format("[... %d lines dropped, over %d lines/s ...]\n", unreportedDroppedLines,
+            linesPerSecond).getBytes(UTF_8);
+        unreportedDroppedLines = 0;
+        emit(marker, 0, marker.length);
+    }
+
+    private void emit(byte[] buffer, int offset, int end) throws IOException {
+        if (end == offset) return;
+        out.write(buffer, offset, end - offset);
+        if (lineListener.isPresent()) publishLines(buffer, offset, end);
+    }
+
+    private static int countLines(byte[] buffer, int length) {
+        int lines = 0;
+        for (int index = 0; index < length; index++) if (buffer[index] == '\n') lines++;
+        return lines;
+    }
+
+    /** publishes complete lines, holding back a trailing partial line for the next chunk */
+    private void publishLines(byte[] buffer, int offset, int end) {
+        int lastNewline = end - 1;
+        while (lastNewline >= offset && buffer[lastNewline] != '\n') lastNewline--;
+
+        if (lastNewline >= offset && partialLine.size() == 0) publish(buffer, offset, lastNewline + 1 - offset);
+        else if (lastNewline >= offset) {
+            partialLine.write(buffer, offset, lastNewline + 1 - offset);
+            publish(partialLine.toByteArray(), 0, partialLine.size());
+            partialLine.reset();
+        }
+        partialLine.write(buffer, lastNewline + 1, end - lastNewline - 1);
+
+        if (partialLine.size() >= BUFFER_SIZE) {
+            publish(partialLine.toByteArray(), 0, partialLine.size());
+            partialLine.reset();
+        }
+    }
+
+    private void publish(byte[] bytes, int offset, int length) {
+        lineListener.get().accept(new String(bytes, offset, length, UTF_8));
+    }
+
+    /**
+     * Writes the head of the output straight through, ending it at a line end where the chunk crossing the
+     * head limit has one, then keeps a rolling tail in memory, grown as needed up to the tail limit. On finishing
+     * the tail is written after a marker counting the elided bytes, starting at a line start where it has one
+     */
+    private static class HeadTail extends OutputStream {
+        private final OutputStream out;
+        private final long headLimit;
+        private final int tailLimit;
+        private byte[] tail = new byte[0];
+        private long headWritten;
+        private boolean headFull;
+        private boolean headEndsLine = true;
+        private long tailWritten;
+        private long elided;
+
+        HeadTail(OutputStream out, OutputLimit limit) {
+            this.out = out;
+            this.headLimit = limit.headKb * 1024L;
+            this.tailLimit = limit.tailKb * 1024;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (!headFull) {
+                int headBytes = (int) Math.min(length, headLimit - headWritten);
+                if (headBytes < length) {
+                    headFull = true;
+                    int lineEnd = offset + headBytes - 1;
+                    while (lineEnd >= offset && bytes[lineEnd] != '\n') lineEnd--;
+                    if (lineEnd >= offset) headBytes = lineEnd + 1 - offset;
+                }
+                if (headBytes > 0) {
+                    out.write(bytes, offset, headBytes);
+                    headWritten += headBytes;
+                    headEndsLine = bytes[offset + headBytes - 1] == '\n';
+                }
+                offset += headBytes;
+                length -= headBytes;
+            }
+            if (length > 0 && tailLimit > 0) writeTail(bytes, offset, length);
+            else tailWritten += length;
+        }
+
+        private void writeTail(byte[] bytes, int offset, int length) {
+            if (length > tailLimit) {
+                offset += length - tailLimit;
+                tailWritten += length - tailLimit;
+                length = tailLimit;
+            }
+            // most output is short, so the tail only reaches its limit once the output does
+            long needed = Math.min(tailLimit, tailWritten + length);
+            if (needed > tail.length)
+                tail = Arrays.copyOf(tail, (int) Math.min(tailLimit, Math.max(needed, tail.length * 2L)));
+
+            int position = (int) (tailWritten % tailLimit);
+            int firstPart = Math.min(length, tailLimit - position);
+            System.arraycopy(bytes, offset, tail, position, firstPart);
+            System.arraycopy(bytes, offset + firstPart, tail, 0, length - firstPart);
+            tailWritten += length;
+        }
+
+        /** @return tail bytes, oldest first, none when only the head is kept */
+        private byte[] tailBytes() {
+            if (tailLimit == 0) return new byte[0];
+            if (tailWritten <= tailLimit) return Arrays.copyOf(tail, (int) tailWritten);
+            int position = (int) (tailWritten % tailLimit);
+            byte[] ordered = new byte[tailLimit];
+            System.arraycopy(tail, position, ordered, 0, tailLimit - position);
+            System.arraycopy(tail, 0, ordered, tailLimit - position, position);
+            return ordered;
+        }
+
+        long elidedBytes() {
+            return elided;
+        }
+
+        void finish() throws IOException {
+            byte[] kept = tailBytes();
+            int start = 0;
+            if (tailWritten > kept.length) {
+                // start the tail on a line, unless it has no line end
+                while (start < kept.length && kept[start] != '\n') start++;
+                start = start < kept.length ? start + 1 : 0;
+                elided = tailWritten - kept.length + start;
+                out.write(String.format("%s[... %d bytes elided, kept first %d & last %d bytes ...]\n",
+                    headEndsLine ? "" : "\n", elided, headWritten, kept.length - start)
+                    .getBytes(UTF_8));
+            }
+            out.write(kept, start, kept.length - start);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package alexh.ci;
+
+import java.util.concurrent.*;
+
+/**
+ * Times out & kills the process trees of runs. A kill stops & signals the tree, see {@link ProcessTree#kill}, so
+ * kills run in the background, not holding up cancelling or other runs' timeouts
+ */
+public class ProcessKiller {
+
+    private final ScheduledExecutorService timeouts;
+    private final ExecutorService kills;
+
+    /**
+     * @param timeouts schedules timeouts, which only hand kills on
+     * @param kills kills process trees, stopped after whatever runs scripts so killed scripts end
+     */
+    public ProcessKiller(ScheduledExecutorService timeouts, ExecutorService kills) {
+        // cancelled timeouts, the usual case, would otherwise stay queued until due
+        if (timeouts instanceof ScheduledThreadPoolExecutor)
+            ((ScheduledThreadPoolExecutor) timeouts).setRemoveOnCancelPolicy(true);
+        this.timeouts = timeouts;
+        this.kills = kills;
+    }
+
+    /** @return scheduled task, cancel the result once it's no longer due */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return timeouts.schedule(task, delay, unit);
+    }
+
+    /** Kills the process & its descendants in the background */
+    public void kill(Process process) {
+        kills.execute(() -> ProcessTree.kill(process));
+    }
+}
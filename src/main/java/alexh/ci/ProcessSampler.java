@@ -0,0 +1,153 @@
+package alexh.ci;
+
+import alexh.Fluent;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Samples the resource use of running scripts' process trees from /proc. A single thread reads the process table
+ * once per interval for all tracked scripts, so sampling cost doesn't grow with concurrent runs, & only while
+ * scripts are tracked. Processes living less than an interval may be missed, usage is a lower bound
+ */
+public class ProcessSampler implements Managed {
+
+    private static final Logger log = LoggerFactory.getLogger(ProcessSampler.class);
+
+    /** USER_HZ, the unit of /proc cpu times, 100 on mainstream Linux */
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    private final Map<Integer, Usage> tracked = new ConcurrentHashMap<>();
+    private final Duration interval;
+    private final ScheduledExecutorService sampler;
+    private boolean started;
+    private Optional<ScheduledFuture<?>> sampling = Optional.empty();
+
+    /**
+     * @param interval time between samples, 0 disables sampling
+     * @param sampler thread to sample with
+     */
+    public ProcessSampler(Duration interval, ScheduledExecutorService sampler) {
+        this.interval = interval;
+        this.sampler = sampler;
+    }
+
+    @Override
+    public synchronized void start() {
+        started = interval.getQuantity() > 0 && ProcessTree.isSupported();
+    }
+
+    /** Stops sampling, usage of scripts still tracked is sampled as they finish */
+    @Override
+    public synchronized void stop() {
+        started = false;
+        sampling.ifPresent(schedule -> schedule.cancel(false));
+        sampling = Optional.empty();
+    }
+
+    /** @return usage of the process & its descendants, sampled until finished. Empty if sampling is off */
+    public synchronized Optional<Usage> track(Process process) {
+        if (!started) return Optional.empty();
+
+        return ProcessTree.pid(process).map(pid -> {
+            Usage usage = new Usage(pid);
+            tracked.put(pid, usage);
+            if (!sampling.isPresent())
+                sampling = Optional.of(sampler.scheduleWithFixedDelay(this::sampleAll,
+                    interval.toMilliseconds(), interval.toMilliseconds(), TimeUnit.MILLISECONDS));
+            return usage;
+        });
+    }
+
+    private synchronized void untrack(Usage usage) {
+        tracked.remove(usage.pid, usage);
+        if (tracked.isEmpty()) {
+            sampling.ifPresent(schedule -> schedule.cancel(false));
+            sampling = Optional.empty();
+        }
+    }
+
+    private void sampleAll() {
+        if (tracked.isEmpty()) return;
+        try {
+            ProcessTree processes = ProcessTree.read();
+            tracked.values().forEach(usage -> usage.sample(processes));
+        }
+        catch (RuntimeException ex) { log.warn("Failed to sample processes", ex); }
+    }
+
+    private static long kilobytes(String value) {
+        // eg "1234 kB"
+        return value == null ? 0 : Long.parseLong(value.replaceFirst("\\s*kB$", ""));
+    }
+
+    /** Peak & cumulative resource use of a process tree */
+    public class Usage {
+        private final int pid;
+        private final Set<Integer> children = new HashSet<>();
+        /** latest io counters of each process seen, as a process' counters are lost when it ends */
+        private final Map<Integer, long[]> io = new HashMap<>();
+        private long peakRssKb;
+        private long userTicks;
+        private long systemTicks;
+
+        private Usage(int pid) {
+            this.pid = pid;
+        }
+
+        private synchronized void sample(ProcessTree processes) {
+            Optional<ProcessTree.Stat> root = processes.stat(pid);
+            if (!root.isPresent()) return;
+
+            List<ProcessTree.Stat> tree = new ArrayList<>(processes.descendants(pid));
+            tree.forEach(child -> children.add(child.pid));
+            tree.add(root.get());
+
+            long rssKb = 0, user = 0, system = 0;
+            for (ProcessTree.Stat stat : tree) {
+                // an ended child's cpu time is added to its waiting parent, so is counted once
+                user += stat.userTicks + stat.childUserTicks;
+                system += stat.systemTicks + stat.childSystemTicks;
+                rssKb += kilobytes(stat.status().get("VmRSS"));
+
+                Map<String, String> counters = stat.io();
+                if (counters.containsKey("read_bytes")) io.put(stat.pid, new long[] {
+                    Long.parseLong(counters.get("read_bytes")), Long.parseLong(counters.get("write_bytes")) });
+            }
+            peakRssKb = Math.max(peakRssKb, rssKb);
+            // orphaned descendants leave the tree taking their cpu time with them, keep the highest seen
+            userTicks = Math.max(userTicks, user);
+            systemTicks = Math.max(systemTicks, system);
+        }
+
+        /**
+         * Stops sampling, taking a final sample if the process is still running. Finish as soon as the process' output
+         * ends, as an ended process is reaped by the jvm taking its usage & that of its reaped children with it
+         * @return usage for the script status
+         *   {
+         *     peakRssBytes: 10485760,
+         *     userCpuMillis: 1230,
+         *     systemCpuMillis: 90,
+         *     readBytes: 4096,
+         *     writeBytes: 8192,
+         *     childProcesses: 3
+         *   }
+         */
+        public synchronized Map<String, Object> finish() {
+            try { sample(ProcessTree.read()); }
+            catch (RuntimeException ex) { log.warn("Failed to sample processes", ex); }
+            untrack(this);
+
+            return new Fluent.LinkedHashMap<String, Object>()
+                .append("peakRssBytes", peakRssKb * 1024)
+                .append("userCpuMillis", userTicks * 1000 / CLOCK_TICKS_PER_SECOND)
+                .append("systemCpuMillis", systemTicks * 1000 / CLOCK_TICKS_PER_SECOND)
+                .append("readBytes", io.values().stream().mapToLong(counters -> counters[0]).sum())
+                .append("writeBytes", io.values().stream().mapToLong(counters -> counters[1]).sum())
+                .append("childProcesses", children.size());
+        }
+    }
+}
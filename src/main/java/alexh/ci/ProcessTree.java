@@ -0,0 +1,175 @@
+package alexh.ci;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Snapshot of the process table from /proc, for finding, measuring & killing the processes started by a script
+ */
+public class ProcessTree {
+
+    private static final File PROC = new File("/proc");
+
+    private final Map<Integer, Stat> stats;
+    private final Map<Integer, List<Stat>> children;
+
+    private ProcessTree(Map<Integer, Stat> stats) {
+        this.stats = stats;
+        this.children = stats.values().stream().collect(groupingBy(stat -> stat.ppid));
+    }
+
+    public static boolean isSupported() {
+        return PROC.isDirectory();
+    }
+
+    /** @return snapshot of every process, processes ending while reading are left out */
+    public static ProcessTree read() {
+        Map<Integer, Stat> stats = new HashMap<>();
+        String[] names = PROC.list();
+        if (names != null) for (String name : names) {
+            if (name.isEmpty() || !Character.isDigit(name.charAt(0))) continue;
+            Stat.read(Integer.parseInt(name)).ifPresent(stat -> stats.put(stat.pid, stat));
+        }
+        return new ProcessTree(stats);
+    }
+
+    /** @return the process's stat, empty if not running */
+    public Optional<Stat> stat(int pid) {
+        return Optional.ofNullable(stats.get(pid));
+    }
+
+    /** @return the process's children, their children & so on */
+    public List<Stat> descendants(int pid) {
+        List<Stat> descendants = new ArrayList<>();
+        // guards against pid reuse forming a cycle
+        Set<Integer> seen = new HashSet<>(Collections.singleton(pid));
+        Deque<Integer> parents = new ArrayDeque<>(Collections.singleton(pid));
+        while (!parents.isEmpty()) {
+            for (Stat child : children.getOrDefault(parents.pop(), Collections.emptyList())) {
+                if (!seen.add(child.pid)) continue;
+                descendants.add(child);
+                parents.push(child.pid);
+            }
+        }
+        return descendants;
+    }
+
+    /** @return the process's pid, empty if the runtime doesn't expose it */
+    public static Optional<Integer> pid(Process process) {
+        try {
+            // java 9+
+            return Optional.of(((Number) Process.class.getMethod("pid").invoke(process)).intValue());
+        }
+        catch (ReflectiveOperationException | RuntimeException ex) {
+            try {
+                // java 8 unix process
+                Field pid = process.getClass().getDeclaredField("pid");
+                pid.setAccessible(true);
+                return Optional.of(pid.getInt(process));
+            }
+            catch (ReflectiveOperationException | RuntimeException ex2) { return Optional.empty(); }
+        }
+    }
+
+    /**
+     * Kills the process & all its descendants. The tree is stopped from the root down before killing, so
+     * processes can't fork or be orphaned out of it in between. Without /proc only the process is killed
+     */
+    public static void kill(Process process) {
+        Optional<Integer> pid = pid(process);
+        if (pid.isPresent() && isSupported()) {
+            Set<Integer> stopped = new LinkedHashSet<>(Collections.singleton(pid.get()));
+            signal("STOP", stopped);
+            for (int attempt = 0; attempt < 10; attempt++) {
+                List<Integer> forked = read().descendants(pid.get()).stream()
+                    .map(stat -> stat.pid)
+                    .filter(child -> !stopped.contains(child))
+                    .collect(toList());
+                if (forked.isEmpty()) break;
+                signal("STOP", forked);
+                stopped.addAll(forked);
+            }
+            signal("KILL", stopped);
+        }
+        process.destroyForcibly();
+    }
+
+    private static void signal(String signal, Collection<Integer> pids) {
+        List<String> command = new ArrayList<>(Arrays.asList("kill", "-" + signal));
+        pids.forEach(pid -> command.add(String.valueOf(pid)));
+        try {
+            new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File("/dev/null"))
+                .start()
+                .waitFor();
+        }
+        catch (IOException ex) { throw new UncheckedIOException(ex); }
+        catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+    }
+
+    /** Fields of /proc/{pid}/stat, cpu times are in clock ticks */
+    public static class Stat {
+        public final int pid;
+        public final int ppid;
+        public final long userTicks;
+        public final long systemTicks;
+        /** cpu time of ended & waited for children */
+        public final long childUserTicks;
+        public final long childSystemTicks;
+
+        private Stat(int pid, String[] fields) {
+            // fields follow "pid (comm) ", state is the first
+            this.pid = pid;
+            this.ppid = Integer.parseInt(fields[1]);
+            this.userTicks = Long.parseLong(fields[11]);
+            this.systemTicks = Long.parseLong(fields[12]);
+            this.childUserTicks = Long.parseLong(fields[13]);
+            this.childSystemTicks = Long.parseLong(fields[14]);
+        }
+
+        static Optional<Stat> read(int pid) {
+            try {
+                String stat = new String(Files.readAllBytes(procFile(pid, "stat").toPath()));
+                // comm may contain spaces & parentheses, so split after the last
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return Optional.of(new Stat(pid, fields));
+            }
+            catch (IOException | RuntimeException ex) { return Optional.empty(); }
+        }
+
+        /** @return "Name: value" lines of /proc/{pid}/status */
+        public Map<String, String> status() {
+            return fields("status");
+        }
+
+        /** @return "name: value" lines of /proc/{pid}/io */
+        public Map<String, String> io() {
+            return fields("io");
+        }
+
+        private Map<String, String> fields(String file) {
+            Map<String, String> fields = new HashMap<>();
+            try (Stream<String> lines = Files.lines(procFile(pid, file).toPath())) {
+                lines.map(line -> line.split(":", 2))
+                    .filter(field -> field.length == 2)
+                    .forEach(field -> fields.put(field[0].trim(), field[1].trim()));
+            }
+            catch (IOException | RuntimeException ex) {
+                // process ended or not readable
+            }
+            return fields;
+        }
+    }
+
+    private static File procFile(int pid, String name) {
+        return new File(PROC, pid + "/" + name);
+    }
+}
@@ -0,0 +1,238 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import alexh.Fluent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed results of script runs, so a script run again with the same code, interpreter & input files
+ * replays its result instead of running. Results are stored on disk as "{key}.json" & "{key}.log", least recently
+ * used results are evicted beyond the size limit
+ */
+public class ResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultCache.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /** content hashes by file, reused while size & modified time are unchanged */
+    private final Cache<String, FileHash> fileHashes = CacheBuilder.newBuilder()
+        .maximumSize(500_000)
+        .build();
+    /** last use & size of stored results, by key */
+    private final Map<String, long[]> entries = new ConcurrentHashMap<>();
+    private final AtomicLong size = new AtomicLong();
+    private final File directory;
+    private final long maxBytes;
+
+    /** @param directory of stored results, results left in it by an earlier process are reused */
+    public ResultCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (!directory.exists()) checkArgument(directory.mkdirs());
+        // partial entries of stores cut short
+        File[] partials = directory.listFiles((dir, name) -> name.endsWith(".tmp"));
+        if (partials != null) for (File partial : partials) partial.delete();
+        File[] results = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (results != null) for (File result : results) {
+            String key = result.getName().replaceFirst("\\.json$", "");
+            long entrySize = result.length() + logFile(key).length();
+            entries.put(key, new long[] {result.lastModified(), entrySize});
+            size.addAndGet(entrySize);
+        }
+    }
+
+    /**
+     * @param scope directory unchanged files' hashes are reused within, eg the job directory
+     * @param inputs glob patterns of input files relative to the work directory, eg "src/**"
+     * @return key of the script run, empty if it couldn't be computed
+     */
+    public Optional<String> key(File script, String code, File workDirectory, List<String> inputs, File scope) {
+        try {
+            Hasher hasher = Hashing.sha256().newHasher().putString(code, UTF_8).putByte((byte) 0);
+
+            // interpreter path & version, approximated by the binary's size & modified time
+            String interpreter = code.split("\n", 2)[0].replaceFirst("^#!", "").trim();
+            File interpreterFile = new File(interpreter.split("\\s+")[0]);
+            hasher.putString(interpreter, UTF_8).putLong(interpreterFile.length()).putLong(interpreterFile.lastModified());
+
+            for (Map.Entry<String, String> input : inputHashes(workDirectory, inputs, scope).entrySet())
+                hasher.putString(input.getKey(), UTF_8).putByte((byte) 0).putString(input.getValue(), UTF_8);
+            return Optional.of(hasher.hash().toString());
+        }
+        catch (IOException | RuntimeException ex) {
+            log.warn("Failed to compute cache key of " + script, ex);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return content hashes of the input files by relative path, in path order. Only each pattern's base directory
+     *   is walked, eg "src" of "src/**", rather than the whole work directory
+     */
+    private SortedMap<String, String> inputHashes(File workDirectory, List<String> inputs, File scope) throws IOException {
+        Path root = workDirectory.toPath().normalize();
+        List<PathMatcher> matchers = inputs.stream()
+            .map(pattern -> root.getFileSystem().getPathMatcher("glob:" + pattern))
+            .collect(Collectors.toList());
+        // a base within another's is walked as part of it
+        SortedSet<Path> bases = new TreeSet<>();
+        inputs.stream()
+            .map(pattern -> root.resolve(globBase(pattern)).normalize())
+            // patterns only match within the work directory
+            .map(base -> base.startsWith(root) ? base : root)
+            .forEach(base -> {
+                if (bases.stream().noneMatch(base::startsWith)) {
+                    bases.removeIf(walked -> walked.startsWith(base));
+                    bases.add(base);
+                }
+            });
+
+        SortedMap<String, String> hashes = new TreeMap<>();
+        for (Path base : bases) {
+            if (!Files.exists(base)) continue;
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    Path relative = root.relativize(file);
+                    if (attributes.isRegularFile() && matchers.stream().anyMatch(matcher -> matcher.matches(relative)))
+                        hashes.put(relative.toString(), hash(file, attributes, scope.getAbsolutePath() + "/" + relative));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return hashes;
+    }
+
+    /** @return leading path segments of the glob pattern without wildcards, eg "src/main" of "src/main/**.java" */
+    static String globBase(String pattern) {
+        List<String> base = new ArrayList<>();
+        for (String segment : pattern.split("/")) {
+            if (segment.matches(".*[*?\\[\\]{}\\\\].*")) break;
+            base.add(segment);
+        }
+        return String.join("/", base);
+    }
+
+    private String hash(Path file, BasicFileAttributes attributes, String id) throws IOException {
+        long modified = attributes.lastModifiedTime().toMillis();
+        FileHash known = fileHashes.getIfPresent(id);
+        if (known != null && known.size == attributes.size() && known.modified == modified) return known.hash;
+
+        String hash = com.google.common.io.Files.hash(file.toFile(), Hashing.sha256()).toString();
+        fileHashes.put(id, new FileHash(attributes.size(), modified, hash));
+        return hash;
+    }
+
+    /**
+     * Copies a stored result's log to the out log
+     * @return stored exit code, empty if none stored
+     */
+    public Optional<Integer> replay(String key, File outLog) {
+        if (!entries.containsKey(key)) return Optional.empty();
+        try {
+            Map<?, ?> result = mapper.readValue(resultFile(key), Map.class);
+            Files.copy(logFile(key).toPath(), outLog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            long now = System.currentTimeMillis();
+            resultFile(key).setLastModified(now);
+            entries.computeIfPresent(key, (k, entry) -> new long[] {now, entry[1]});
+            return Optional.of(((Number) result.get("exitCode")).intValue());
+        }
+        catch (IOException ex) {
+            // evicted while replaying
+            log.debug("Failed to replay " + key, ex);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores a script run's result, evicting least recently used results if over the size limit. The result is
+     * written to files of this store's own, so concurrent stores of a key don't mix, then moved into place
+     */
+    public void store(String key, int exitCode, File outLog) {
+        try {
+            File partialLog = File.createTempFile(key, ".log.tmp", directory);
+            File partialResult = File.createTempFile(key, ".json.tmp", directory);
+            try {
+                Files.copy(outLog.toPath(), partialLog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                mapper.writeValue(partialResult, new Fluent.HashMap<>().append("exitCode", exitCode));
+                publish(key, partialLog, partialResult);
+            }
+            finally {
+                partialLog.delete();
+                partialResult.delete();
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            log.warn("Failed to store cached result " + key, ex);
+        }
+        if (size.get() > maxBytes) evict();
+    }
+
+    /** Moves a written result into place, locked so an eviction doesn't remove the key's files meanwhile */
+    private synchronized void publish(String key, File partialLog, File partialResult) throws IOException {
+        Files.move(partialLog.toPath(), logFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        // result file last, its presence marks a complete entry
+        Files.move(partialResult.toPath(), resultFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        long entrySize = resultFile(key).length() + logFile(key).length();
+        long[] previous = entries.put(key, new long[] {System.currentTimeMillis(), entrySize});
+        size.addAndGet(entrySize - (previous == null ? 0 : previous[1]));
+    }
+
+    private synchronized void evict() {
+        List<String> leastRecentFirst = entries.entrySet().stream()
+            .sorted(Comparator.comparingLong(entry -> entry.getValue()[0]))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+
+        // evict to below the limit so each store doesn't evict
+        long target = maxBytes * 9 / 10;
+        for (Iterator<String> keys = leastRecentFirst.iterator(); keys.hasNext() && size.get() > target;) {
+            String key = keys.next();
+            long[] entry = entries.remove(key);
+            if (entry == null) continue;
+            Stream.of(resultFile(key), logFile(key)).forEach(File::delete);
+            size.addAndGet(-entry[1]);
+        }
+    }
+
+    private File resultFile(String key) {
+        return new File(directory, key + ".json");
+    }
+
+    private File logFile(String key) {
+        return new File(directory, key + ".log");
+    }
+
+    private static class FileHash {
+        final long size;
+        final long modified;
+        final String hash;
+
+        FileHash(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+}
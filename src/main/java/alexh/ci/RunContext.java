@@ -0,0 +1,26 @@
+package alexh.ci;
+
+import java.util.Optional;
+
+/**
+ * State shared by an application's runs, created by the application & given to what runs scripts or reads their
+ * statuses
+ */
+public class RunContext {
+
+    public final RunStatuses statuses;
+    public final RunMetrics metrics;
+    public final ProcessSampler sampler;
+    public final ProcessKiller killer;
+    /** results of scripts with cache inputs, empty when caching is disabled */
+    public final Optional<ResultCache> resultCache;
+
+    public RunContext(RunStatuses statuses, RunMetrics metrics, ProcessSampler sampler, ProcessKiller killer,
+                      Optional<ResultCache> resultCache) {
+        this.statuses = statuses;
+        this.metrics = metrics;
+        this.sampler = sampler;
+        this.killer = killer;
+        this.resultCache = resultCache;
+    }
+}
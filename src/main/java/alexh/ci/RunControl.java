@@ -0,0 +1,99 @@
+package alexh.ci;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Cancels the scripts of a run, or a part of a run. Process trees started under a cancelled control are killed,
+ * scripts not yet started are skipped & child controls are cancelled with their parent. Also carries the job
+ * settings its scripts run with
+ */
+public class RunControl {
+
+    /** exit code of a script skipped because its run was cancelled before it started */
+    public static final int CANCELLED_EXIT_CODE = 130;
+
+    private final ProcessKiller killer;
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private final List<RunControl> children = new CopyOnWriteArrayList<>();
+    private final boolean errorScriptOnCancel;
+    private final OutputLimit outputLimit;
+    private volatile boolean cancelled;
+    private volatile boolean timedOut;
+
+    public RunControl(ProcessKiller killer) {
+        this(killer, false, OutputLimit.NONE);
+    }
+
+    /**
+     * @param killer times out & kills the run's process trees
+     * @param errorScriptOnCancel whether a cancelled script's error script still runs, eg to clean up
+     * @param outputLimit bounds each script's stored output
+     */
+    public RunControl(ProcessKiller killer, boolean errorScriptOnCancel, OutputLimit outputLimit) {
+        this.killer = killer;
+        this.errorScriptOnCancel = errorScriptOnCancel;
+        this.outputLimit = outputLimit;
+    }
+
+    /** @return control cancelled along with this one, that can also be cancelled separately */
+    public RunControl child() {
+        RunControl child = new RunControl(killer, errorScriptOnCancel, outputLimit);
+        children.add(child);
+        if (cancelled) child.cancel(timedOut);
+        return child;
+    }
+
+    /** @return control for the error script of a cancelled script, not cancelled along with this one */
+    public RunControl cleanUp() {
+        return new RunControl(killer, errorScriptOnCancel, outputLimit);
+    }
+
+    /** Cancels, killing started process trees in the background */
+    public void cancel() {
+        cancel(false);
+    }
+
+    /** @return scheduled cancel as timed out, cancel the result once the run is done */
+    public ScheduledFuture<?> timeOutAfter(long timeout, TimeUnit unit) {
+        return killer.schedule(() -> cancel(true), timeout, unit);
+    }
+
+    private void cancel(boolean timeout) {
+        if (!cancelled) timedOut = timeout;
+        cancelled = true;
+        processes.forEach(killer::kill);
+        children.forEach(child -> child.cancel(timeout));
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public boolean runsErrorScriptOnCancel() {
+        return errorScriptOnCancel;
+    }
+
+    public OutputLimit outputLimit() {
+        return outputLimit;
+    }
+
+    /** Registers a started process, killed right away if already cancelled */
+    void started(Process process) {
+        processes.add(process);
+        if (cancelled) ProcessTree.kill(process);
+    }
+
+    void ended(Process process) {
+        processes.remove(process);
+    }
+
+    ProcessKiller killer() {
+        return killer;
+    }
+}
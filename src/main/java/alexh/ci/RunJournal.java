@@ -0,0 +1,175 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import alexh.Fluent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Append-only journal of script status updates, making run transitions durable without writing each status file.
+ * Updates are appended & synced to disk in batches by a single thread. Status files are written from memory & synced
+ * on each compaction, which rewrites the journal with only the statuses of scripts not yet ended or whose status
+ * files failed to write. On starting,
+ * statuses in the journal are recovered to their status files & scripts that never ended, as the process stopped
+ * while they ran, are marked "aborted"
+ */
+public class RunJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(RunJournal.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final File file;
+    private final RunStatuses statuses;
+    private final ScheduledExecutorService writer;
+    private final Queue<byte[]> appends = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /** statuses of scripts not yet ended, kept through compaction so they can be found if the process stops */
+    private final Map<File, Map<?, ?>> live = new ConcurrentHashMap<>();
+    private FileChannel channel;
+
+    /**
+     * @param statuses registry whose updates are journaled, & status files written on compaction
+     * @param writer single thread to append to the journal with
+     */
+    RunJournal(File file, RunStatuses statuses, ScheduledExecutorService writer) {
+        this.file = file;
+        this.statuses = statuses;
+        this.writer = writer;
+    }
+
+    /** @param status latest status, or null if the status was dropped */
+    void append(File statusFile, Map<?, ?> status) {
+        if (status == null || isEnded(status)) live.remove(statusFile);
+        else live.put(statusFile, status);
+        try { appends.add(entry(statusFile, status)); }
+        catch (IOException ex) {
+            log.error("Failed to journal " + statusFile, ex);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) writer.execute(this::flush);
+    }
+
+    private static boolean isEnded(Map<?, ?> status) {
+        return status.containsKey("ended") || status.containsKey("cancelled");
+    }
+
+    private static byte[] entry(File statusFile, Map<?, ?> status) throws IOException {
+        byte[] json = mapper.writeValueAsBytes(new Fluent.HashMap<String, Object>()
+            .append("file", statusFile.getPath())
+            .append("status", status));
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        return line;
+    }
+
+    /** Appends updates queued since the last flush with a single write & sync */
+    private synchronized void flush() {
+        flushScheduled.set(false);
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (byte[] entry = appends.poll(); entry != null; entry = appends.poll()) batch.write(entry, 0, entry.length);
+        if (batch.size() == 0) return;
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+        }
+        catch (IOException ex) { log.error("Failed to append to " + file, ex); }
+    }
+
+    /**
+     * Writes & syncs status files from memory, then rewrites the journal with the statuses of scripts not yet ended
+     * & those whose status files failed to write, so no update is only in memory
+     */
+    synchronized void compact() {
+        try {
+            flush();
+            Map<File, Map<?, ?>> kept = new HashMap<>(live);
+            kept.putAll(statuses.writeAll(true));
+            rewrite(kept);
+        }
+        catch (IOException | RuntimeException ex) { log.error("Failed to compact " + file, ex); }
+    }
+
+    /** Atomically replaces the journal with the statuses, reopening it to append to */
+    private void rewrite(Map<File, Map<?, ?>> kept) throws IOException {
+        File partial = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<File, Map<?, ?>> status : kept.entrySet())
+                out.write(ByteBuffer.wrap(entry(status.getKey(), status.getValue())));
+            out.force(false);
+        }
+        if (channel != null) channel.close();
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        RunStatuses.syncDirectory(file.getAbsoluteFile().getParentFile());
+        channel = openForAppend();
+    }
+
+    private FileChannel openForAppend() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Writes & syncs the journal's latest statuses to their status files, with scripts that never ended marked
+     * aborted, then rewrites the journal with only those that failed to write
+     */
+    synchronized void recover() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.exists()) checkArgument(directory.mkdirs());
+        Map<File, Map<?, ?>> recovered = new LinkedHashMap<>();
+        if (file.exists()) try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                Map<?, ?> entry;
+                try { entry = mapper.readValue(line, Map.class); }
+                catch (IOException ex) {
+                    // eg the last append cut short, later entries may still be whole
+                    log.warn("Skipping unreadable journal entry in " + file);
+                    continue;
+                }
+                if (!(entry.get("file") instanceof String)) {
+                    log.warn("Skipping journal entry without a file in " + file);
+                    continue;
+                }
+                File statusFile = new File((String) entry.get("file"));
+                if (entry.get("status") == null) recovered.remove(statusFile);
+                else recovered.put(statusFile, (Map<?, ?>) entry.get("status"));
+            }
+        }
+
+        String now = Instant.now().toString();
+        int aborted = 0;
+        for (Map.Entry<File, Map<?, ?>> status : recovered.entrySet()) {
+            // run since removed
+            if (!status.getKey().getParentFile().exists()) continue;
+            if (isEnded(status.getValue())) statuses.update(status.getKey(), status.getValue());
+            else {
+                statuses.update(status.getKey(), new Fluent.LinkedHashMap<>()
+                    .appendAll(status.getValue())
+                    .append("ended", now)
+                    .append("aborted", true));
+                aborted++;
+            }
+        }
+        Map<File, Map<?, ?>> unwritten = new HashMap<>(statuses.writeAll(true));
+        if (aborted > 0) log.warn("Marked {} script(s) interrupted by the last shutdown as aborted", aborted);
+
+        // recovered statuses are on disk, so only keep those that aren't
+        rewrite(unwritten);
+    }
+}
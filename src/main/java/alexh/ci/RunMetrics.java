@@ -0,0 +1,58 @@
+package alexh.ci;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Run, queueing & output metrics, reported to a registry such as the application's */
+public class RunMetrics {
+
+    private final MetricRegistry registry;
+    private final AtomicInteger activeRuns = new AtomicInteger();
+
+    public RunMetrics(MetricRegistry registry) {
+        this.registry = registry;
+        registry.register(name("runs", "active"), (Gauge<Integer>) activeRuns::get);
+    }
+
+    /**
+     * Counts the job's run as active until the returned callback, which records the run duration in the
+     * "runs.job.{id}" timer
+     */
+    public Runnable runStarted(int jobId) {
+        activeRuns.incrementAndGet();
+        long start = System.nanoTime();
+        return () -> {
+            activeRuns.decrementAndGet();
+            registry.timer(jobTimer(jobId)).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        };
+    }
+
+    /** Removes the job's run & script timers, eg once the job is deleted */
+    public void removeJob(int jobId) {
+        String jobTimer = jobTimer(jobId);
+        registry.removeMatching((metricName, metric) ->
+            metricName.equals(jobTimer) || metricName.startsWith(jobTimer + "."));
+    }
+
+    private static String jobTimer(int jobId) {
+        return name("runs", "job", String.valueOf(jobId));
+    }
+
+    /** @param metricName script node name, eg "runs.job.1.script-oe" */
+    public void scriptRan(String metricName, long nanos) {
+        registry.timer(metricName).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Records the time a script waited between being run & an executor starting it */
+    public void queueWaited(long nanos) {
+        registry.timer(name("runs", "queue-wait")).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void output(int bytes, int lines) {
+        registry.meter(name("runs", "output", "bytes")).mark(bytes);
+        if (lines > 0) registry.meter(name("runs", "output", "lines")).mark(lines);
+    }
+}
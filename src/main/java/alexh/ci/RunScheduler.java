@@ -0,0 +1,167 @@
+package alexh.ci;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import alexh.Fluent;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches script runs onto a fixed number of slots. Each job has its own wait queue ordered by
+ * priority then arrival, the next slot goes to the job with the highest priority head, ties are
+ * broken by whichever job was served least recently
+ */
+public class RunScheduler {
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private final Executor workers;
+    private final int maxConcurrentRuns;
+    private final int maxRunsPerJob;
+    private final Map<String, Integer> jobLimits;
+
+    /** job queues in dispatch order, least recently served first */
+    private final LinkedHashMap<String, JobQueue> queues = new LinkedHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private int running;
+    private long dispatched;
+    private long totalWaitNanos;
+
+    /**
+     * @param workers executor with at least maxConcurrentRuns threads
+     * @param maxConcurrentRuns global slot limit
+     * @param maxRunsPerJob slot limit for any single job, 0 for no limit besides the global
+     * @param jobLimits per job overrides of maxRunsPerJob
+     */
+    public RunScheduler(Executor workers, int maxConcurrentRuns, int maxRunsPerJob, Map<String, Integer> jobLimits) {
+        checkArgument(maxConcurrentRuns > 0, "maxConcurrentRuns must be positive");
+        this.workers = workers;
+        this.maxConcurrentRuns = maxConcurrentRuns;
+        this.maxRunsPerJob = maxRunsPerJob;
+        this.jobLimits = new HashMap<>(jobLimits);
+    }
+
+    /** @return executor that queues tasks under the job with default priority */
+    public Executor executor(String jobKey) {
+        return executor(jobKey, DEFAULT_PRIORITY);
+    }
+
+    /** @return executor that queues tasks under the job, higher priority tasks are dispatched first */
+    public Executor executor(String jobKey, int priority) {
+        return task -> submit(jobKey, priority, task);
+    }
+
+    public void submit(String jobKey, int priority, Runnable task) {
+        synchronized (queues) {
+            queues.computeIfAbsent(jobKey, JobQueue::new)
+                .waiting.add(new Entry(task, priority, sequence.incrementAndGet()));
+            dispatch();
+        }
+    }
+
+    private int limitOf(String jobKey) {
+        int limit = jobLimits.getOrDefault(jobKey, maxRunsPerJob);
+        return limit > 0 ? limit : maxConcurrentRuns;
+    }
+
+    /** must hold queues lock */
+    private void dispatch() {
+        while (running < maxConcurrentRuns) {
+            JobQueue next = null;
+            for (JobQueue queue : queues.values()) {
+                if (queue.waiting.isEmpty() || queue.running >= limitOf(queue.key)) continue;
+                if (next == null || queue.waiting.peek().priority > next.waiting.peek().priority) next = queue;
+            }
+            if (next == null) return;
+
+            Entry entry = next.waiting.poll();
+            next.running += 1;
+            running += 1;
+            dispatched += 1;
+            totalWaitNanos += System.nanoTime() - entry.queuedAt;
+
+            // move to the back of the rotation
+            queues.remove(next.key);
+            queues.put(next.key, next);
+
+            JobQueue queue = next;
+            try {
+                workers.execute(() -> {
+                    try { entry.task.run(); }
+                    finally { release(queue); }
+                });
+            }
+            catch (RuntimeException ex) {
+                queue.running -= 1;
+                running -= 1;
+                throw ex;
+            }
+        }
+    }
+
+    private void release(JobQueue queue) {
+        synchronized (queues) {
+            queue.running -= 1;
+            running -= 1;
+            if (queue.running == 0 && queue.waiting.isEmpty()) queues.remove(queue.key);
+            dispatch();
+        }
+    }
+
+    /** @return snapshot of slot usage, queue depth & wait times */
+    public Map<String, Object> stats() {
+        synchronized (queues) {
+            long now = System.nanoTime();
+            int queued = 0;
+            long oldestQueuedAt = now;
+            Map<String, Object> jobs = new TreeMap<>();
+            for (JobQueue queue : queues.values()) {
+                queued += queue.waiting.size();
+                for (Entry entry : queue.waiting) oldestQueuedAt = Math.min(oldestQueuedAt, entry.queuedAt);
+                jobs.put(queue.key, new Fluent.LinkedHashMap<>()
+                    .append("running", queue.running)
+                    .append("queued", queue.waiting.size())
+                    .append("limit", limitOf(queue.key)));
+            }
+
+            return new Fluent.LinkedHashMap<String, Object>()
+                .append("maxConcurrentRuns", maxConcurrentRuns)
+                .append("running", running)
+                .append("queued", queued)
+                .append("longestWaitMillis", TimeUnit.NANOSECONDS.toMillis(now - oldestQueuedAt))
+                .append("dispatched", dispatched)
+                .append("averageWaitMillis", dispatched == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / dispatched))
+                .append("jobs", jobs);
+        }
+    }
+
+    private static class JobQueue {
+        final String key;
+        final PriorityQueue<Entry> waiting = new PriorityQueue<>();
+        int running;
+
+        JobQueue(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final Runnable task;
+        final int priority;
+        final long sequence;
+        final long queuedAt = System.nanoTime();
+
+        Entry(Runnable task, int priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) return Integer.compare(other.priority, priority);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
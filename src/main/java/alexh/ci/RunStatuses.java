@@ -0,0 +1,177 @@
+package alexh.ci;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registry of script run statuses, keyed by status file. Active & recently read statuses are answered from
+ * memory, updates are written behind to their status files with updates within the write delay coalesced. When
+ * journaled, see {@link RunJournal}, updates are journaled instead & status files written as the journal compacts.
+ * Pending updates are written on stop, so stop this after whatever runs scripts
+ */
+public class RunStatuses implements Managed {
+
+    private static final Logger log = LoggerFactory.getLogger(RunStatuses.class);
+
+    private static final long WRITE_DELAY_MILLIS = 250;
+    private static final int MAX_CACHED = 10_000;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Cache<File, Map<String, Object>> cached = CacheBuilder.newBuilder()
+        .maximumSize(MAX_CACHED)
+        .build();
+    /** updates not yet written, never evicted */
+    private final Map<File, Map<String, Object>> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService writer;
+    private final Optional<RunJournal> journal;
+    private final Optional<Duration> compactInterval;
+
+    /** @param writer single thread to write status files with */
+    public RunStatuses(ScheduledExecutorService writer) {
+        this.writer = writer;
+        this.journal = Optional.empty();
+        this.compactInterval = Optional.empty();
+    }
+
+    /**
+     * Journals updates, recovering statuses from the journal on start
+     * @param writer single thread to write status files & the journal with
+     * @param compactInterval time between writing status files & compacting the journal
+     */
+    public RunStatuses(ScheduledExecutorService writer, File journal, Duration compactInterval) {
+        this.writer = writer;
+        this.journal = Optional.of(new RunJournal(journal, this, writer));
+        this.compactInterval = Optional.of(compactInterval);
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (journal.isPresent()) {
+            journal.get().recover();
+            long interval = compactInterval.get().toMilliseconds();
+            writer.scheduleWithFixedDelay(journal.get()::compact, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Writes all pending updates, compacting any journal */
+    @Override
+    public void stop() {
+        if (journal.isPresent()) journal.get().compact();
+        else write();
+    }
+
+    public void update(File statusFile, Map<?, ?> status) {
+        File key = statusFile.getAbsoluteFile();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> snapshot = unmodifiableMap(new LinkedHashMap<>((Map<String, Object>) status));
+        pending.put(key, snapshot);
+        cached.put(key, snapshot);
+
+        if (journal.isPresent()) journal.get().append(key, snapshot);
+        else if (writeScheduled.compareAndSet(false, true))
+            writer.schedule(this::write, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Drops the status without writing it, eg before its run directory is cleared */
+    public void forget(File statusFile) {
+        File key = statusFile.getAbsoluteFile();
+        pending.remove(key);
+        cached.invalidate(key);
+        journal.ifPresent(journal -> journal.append(key, null));
+    }
+
+    /** @return latest status, read from the status file if not in memory, empty if none */
+    public Map<String, Object> get(File statusFile) {
+        File key = statusFile.getAbsoluteFile();
+        Map<String, Object> status = pending.get(key);
+        if (status == null) status = cached.getIfPresent(key);
+        if (status == null && key.exists()) {
+            status = read(key);
+            cached.put(key, status);
+        }
+        return status != null ? status : emptyMap();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> read(File statusFile) {
+        try { return unmodifiableMap(mapper.readValue(statusFile, Map.class)); }
+        catch (IOException ex) {
+            log.warn("Failed to read " + statusFile, ex);
+            return emptyMap();
+        }
+    }
+
+    /** Writes all pending updates to their status files */
+    public void write() {
+        writeAll(false);
+    }
+
+    /**
+     * @param durable whether to sync the status files & their directories to disk, eg before dropping the journal
+     *   entries they replace
+     * @return updates not known to be persisted as they failed to write or sync
+     */
+    synchronized Map<File, Map<String, Object>> writeAll(boolean durable) {
+        writeScheduled.set(false);
+        Map<File, Map<String, Object>> unwritten = new HashMap<>();
+        Map<File, Map<File, Map<String, Object>>> writtenByDirectory = new HashMap<>();
+        for (Map.Entry<File, Map<String, Object>> entry : pending.entrySet()) {
+            File statusFile = entry.getKey();
+            try {
+                File partial = new File(statusFile.getPath() + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(partial)) {
+                    out.write(mapper.writeValueAsBytes(entry.getValue()));
+                    if (durable) out.getFD().sync();
+                }
+                Files.move(partial.toPath(), statusFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                pending.remove(statusFile, entry.getValue());
+                if (durable) writtenByDirectory.computeIfAbsent(statusFile.getParentFile(), dir -> new HashMap<>())
+                    .put(statusFile, entry.getValue());
+            }
+            catch (IOException ex) {
+                log.error("Failed to write " + statusFile, ex);
+                // run removed, nothing to write to
+                if (!statusFile.getParentFile().exists()) pending.remove(statusFile, entry.getValue());
+                else unwritten.put(statusFile, entry.getValue());
+            }
+        }
+        if (durable) writtenByDirectory.forEach((directory, written) -> {
+            try { syncDirectory(directory); }
+            catch (IOException ex) {
+                log.error("Failed to sync " + directory, ex);
+                unwritten.putAll(written);
+            }
+        });
+        return unwritten;
+    }
+
+    /** Syncs a directory's entries to disk, so files moved into it persist */
+    static void syncDirectory(File directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
@@ -1,9 +1,20 @@
 package alexh.ci;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import alexh.ci.model.JobCatalog;
+import alexh.ci.model.RemoteRuns;
+import alexh.ci.model.RunJanitor;
+import alexh.ci.model.RunQueue;
+import alexh.ci.model.ScratchRuns;
+import alexh.ci.model.WorkDirectories;
 import alexh.ci.resource.JobResource;
+import alexh.ci.resource.SchedulerResource;
+import alexh.ci.resource.ScratchResource;
 import alexh.ci.resource.VersionResource;
+import alexh.ci.resource.WorkerResource;
+import alexh.ci.worker.WorkerCommand;
+import com.codahale.metrics.Gauge;
 import io.dropwizard.Application;
-import io.dropwizard.Configuration;
 import io.dropwizard.java8.Java8Bundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
@@ -11,30 +22,113 @@ import io.dropwizard.util.Duration;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
 import javax.servlet.DispatcherType;
 import javax.servlet.FilterRegistration;
+import java.io.File;
 import java.util.EnumSet;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 
-public class ScriptCiApplication extends Application<Configuration> {
+public class ScriptCiApplication extends Application<ScriptCiConfiguration> {
 
     public static void main(String[] args) throws Exception {
         new ScriptCiApplication().run(args);
     }
 
     @Override
-    public void initialize(Bootstrap<Configuration> bootstrap) {
+    public void initialize(Bootstrap<ScriptCiConfiguration> bootstrap) {
         bootstrap.addBundle(new Java8Bundle());
+        bootstrap.addCommand(new WorkerCommand());
     }
 
     @Override
-    public void run(Configuration configuration, Environment environment) throws Exception {
-        environment.jersey().register(new VersionResource());
-        environment.jersey().register(new JobResource(environment.lifecycle().executorService("single-exe")
-            .maxThreads(1)
+    public void run(ScriptCiConfiguration configuration, Environment environment) throws Exception {
+        // managed before the executors running scripts, so stops after them & writes statuses of scripts they end
+        ScheduledExecutorService statusWriter = environment.lifecycle()
+            .scheduledExecutorService("run-status-writer")
+            .build();
+        RunStatuses statuses = configuration.runJournal.file.isEmpty() ?
+            new RunStatuses(statusWriter) :
+            new RunStatuses(statusWriter, journalFile(configuration),
+                configuration.runJournal.compactInterval);
+        environment.lifecycle().manage(statuses);
+        ProcessSampler sampler = new ProcessSampler(configuration.processSampleInterval,
+            environment.lifecycle().scheduledExecutorService("process-sampler").build());
+        environment.lifecycle().manage(sampler);
+        Optional<ResultCache> resultCache = configuration.resultCache.directory.isEmpty() ? Optional.empty() :
+            Optional.of(new ResultCache(new File(configuration.resultCache.directory),
+                configuration.resultCache.maxSizeMegabytes * 1024 * 1024));
+        ScriptCiConfiguration.Scheduler schedulerConfig = configuration.scheduler;
+        // also managed before the executors running scripts, so scripts they end are killed
+        ProcessKiller killer = new ProcessKiller(
+            environment.lifecycle().scheduledExecutorService("run-timeouts").build(),
+            environment.lifecycle().executorService("run-kill-%d")
+                .minThreads(0)
+                .maxThreads(schedulerConfig.maxConcurrentRuns + configuration.scratch.maxConcurrentRuns)
+                .workQueue(new SynchronousQueue<>())
+                .rejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy())
+                .build());
+        RunContext context = new RunContext(statuses, new RunMetrics(environment.metrics()), sampler, killer,
+            resultCache);
+
+        RunScheduler scheduler = new RunScheduler(environment.lifecycle().executorService("script-run-%d")
+            .minThreads(schedulerConfig.maxConcurrentRuns)
+            .maxThreads(schedulerConfig.maxConcurrentRuns)
             .shutdownTime(Duration.seconds(30l))
-            .build(), environment.getObjectMapper()));
+            .build(), schedulerConfig.maxConcurrentRuns, schedulerConfig.maxRunsPerJob, schedulerConfig.jobLimits);
+
+        JobCatalog catalog = new JobCatalog(new File(configuration.jobsDirectory), context);
+        environment.lifecycle().manage(catalog);
+
+        ScriptCiConfiguration.Retention retention = configuration.retention;
+        environment.lifecycle().manage(new RunJanitor(catalog,
+            environment.lifecycle().scheduledExecutorService("run-janitor").build(),
+            retention.keepRuns, retention.keepDays, retention.compressAfterRuns, retention.interval));
+
+        environment.jersey().register(new VersionResource());
+        WorkDirectories workDirectories = new WorkDirectories(configuration.runWorkDirectories,
+            environment.lifecycle().executorService("work-directories-%d")
+                .minThreads(schedulerConfig.maxConcurrentRuns)
+                .maxThreads(schedulerConfig.maxConcurrentRuns)
+                .build());
+        Optional<RemoteRuns> remoteRuns = Optional.empty();
+        if (configuration.workers.remote) {
+            remoteRuns = Optional.of(new RemoteRuns(configuration.workers.leaseTime,
+                environment.lifecycle().scheduledExecutorService("lease-expirer").build(), context));
+            environment.lifecycle().manage(remoteRuns.get());
+            environment.jersey().register(new WorkerResource(remoteRuns.get()));
+        }
+        RunQueue runQueue = new RunQueue(catalog, scheduler, workDirectories,
+            environment.lifecycle().scheduledExecutorService("run-debounce").build(), remoteRuns);
+        environment.metrics().register(name(RunQueue.class, "pending"), (Gauge<Integer>) runQueue::pendingRuns);
+
+        environment.jersey().register(new JobResource(catalog, runQueue, configuration.runWorkDirectories,
+            environment.getObjectMapper()));
+
+        ScriptCiConfiguration.Scratch scratch = configuration.scratch;
+        ScratchRuns scratchRuns = new ScratchRuns(
+            scratch.directory.isEmpty() ? ScratchRuns.defaultRoot() : new File(scratch.directory),
+            environment.lifecycle().executorService("scratch-run-%d")
+                .minThreads(scratch.maxConcurrentRuns)
+                .maxThreads(scratch.maxConcurrentRuns)
+                .build(),
+            environment.lifecycle().scheduledExecutorService("scratch-cleaner").build(),
+            scratch.maxConcurrentRuns + scratch.maxQueuedRuns, scratch.outputLimit,
+            scratch.timeout.toSeconds(), scratch.timeToLive, scratch.maxSizeMegabytes * 1024 * 1024, context);
+        environment.lifecycle().manage(scratchRuns);
+        environment.metrics().register(name(ScratchRuns.class, "runs"), (Gauge<Integer>) scratchRuns::size);
+        environment.jersey().register(new ScratchResource(scratchRuns));
+        environment.jersey().register(new SchedulerResource(scheduler));
 
         configureCors(environment);
     }
 
+    /** @return journal file, a relative path being under the jobs directory */
+    private static File journalFile(ScriptCiConfiguration configuration) {
+        File journal = new File(configuration.runJournal.file);
+        return journal.isAbsolute() ? journal : new File(configuration.jobsDirectory, configuration.runJournal.file);
+    }
+
     private void configureCors(Environment environment) {
         FilterRegistration.Dynamic filter = environment.servlets().addFilter("CORS", CrossOriginFilter.class);
         filter.addMappingForUrlPatterns(EnumSet.allOf(DispatcherType.class), true, "/*");
@@ -0,0 +1,192 @@
+package alexh.ci;
+
+import alexh.ci.model.WorkDirectories;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.Configuration;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.MinDuration;
+import org.hibernate.validator.constraints.NotEmpty;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ScriptCiConfiguration extends Configuration {
+
+    /** root directory of job definitions, work & runs */
+    @NotEmpty
+    @JsonProperty
+    public String jobsDirectory = "jobs";
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    public Scheduler scheduler = new Scheduler();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    public Retention retention = new Retention();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    public Cache resultCache = new Cache();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    public Workers workers = new Workers();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    public Journal runJournal = new Journal();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    public Scratch scratch = new Scratch();
+
+    /**
+     * how each run gets its work directory from the job's "work" directory: shared, clone or hardlink. Clones are
+     * full copies on filesystems without reflinks, eg ext4, & discard what runs write to work
+     */
+    @NotNull
+    @JsonProperty
+    public WorkDirectories.Mode runWorkDirectories = WorkDirectories.Mode.SHARED;
+
+    /** time between samples of running scripts' cpu, memory & io use, 0 to disable */
+    @NotNull
+    @JsonProperty
+    public Duration processSampleInterval = Duration.seconds(1);
+
+    public static class Scheduler {
+
+        /** number of scripts that may run at once across all jobs */
+        @Min(1)
+        @JsonProperty
+        public int maxConcurrentRuns = Runtime.getRuntime().availableProcessors();
+
+        /** number of scripts a single job may run at once, 0 for no limit besides the global */
+        @Min(0)
+        @JsonProperty
+        public int maxRunsPerJob = 0;
+
+        /** per job overrides of maxRunsPerJob, keyed by job id */
+        @NotNull
+        @JsonProperty
+        public Map<String, Integer> jobLimits = new HashMap<>();
+    }
+
+    public static class Workers {
+
+        /** whether runs are queued for remote workers, started with the "worker" command, instead of run here */
+        @JsonProperty
+        public boolean remote = false;
+
+        /** time a worker may go without syncing a leased run before it's requeued for another worker */
+        @NotNull
+        @JsonProperty
+        public Duration leaseTime = Duration.seconds(30);
+    }
+
+    public static class Journal {
+
+        /**
+         * journal of run status updates, recovered on start up, relative to the jobsDirectory, empty to write status
+         * files directly
+         */
+        @NotNull
+        @JsonProperty
+        public String file = "run-journal";
+
+        /** time between writing status files & dropping ended scripts from the journal */
+        @NotNull
+        @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+        @JsonProperty
+        public Duration compactInterval = Duration.seconds(10);
+    }
+
+    public static class Scratch {
+
+        /** directory of ad-hoc scratch runs, empty for a tmpfs directory where /dev/shm exists */
+        @NotNull
+        @JsonProperty
+        public String directory = "";
+
+        /** number of scratch scripts that may run at once */
+        @Min(1)
+        @JsonProperty
+        public int maxConcurrentRuns = Runtime.getRuntime().availableProcessors();
+
+        /** number of scratch runs that may wait for a free slot, more are refused */
+        @Min(0)
+        @JsonProperty
+        public int maxQueuedRuns = 50;
+
+        /** time to kill a scratch script after */
+        @NotNull
+        @JsonProperty
+        public Duration timeout = Duration.minutes(10);
+
+        /** time to keep ended scratch runs for, also bounds the time between clean ups */
+        @NotNull
+        @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+        @JsonProperty
+        public Duration timeToLive = Duration.hours(1);
+
+        /** size to keep scratch runs under, oldest ended runs are removed first */
+        @Min(1)
+        @JsonProperty
+        public long maxSizeMegabytes = 256;
+
+        /** bounds each scratch run's stored output */
+        @NotNull
+        @JsonProperty
+        public OutputLimit outputLimit = new OutputLimit();
+        {
+            outputLimit.headKb = 512;
+            outputLimit.tailKb = 512;
+        }
+    }
+
+    public static class Cache {
+
+        /** directory of cached script results, empty to disable caching */
+        @NotNull
+        @JsonProperty
+        public String directory = "";
+
+        /** size to keep cached results under, least recently used results are evicted */
+        @Min(1)
+        @JsonProperty
+        public long maxSizeMegabytes = 1024;
+    }
+
+    public static class Retention {
+
+        /** number of most recent runs to keep per job, 0 for no limit */
+        @Min(0)
+        @JsonProperty
+        public int keepRuns = 0;
+
+        /** days to keep runs for, 0 for no limit */
+        @Min(0)
+        @JsonProperty
+        public int keepDays = 0;
+
+        /** number of most recent runs per job to keep with uncompressed logs */
+        @Min(1)
+        @JsonProperty
+        public int compressAfterRuns = 5;
+
+        /** time between retention clean ups */
+        @NotNull
+        @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+        @JsonProperty
+        public Duration interval = Duration.minutes(10);
+    }
+}
@@ -1,17 +1,24 @@
 package alexh.ci;
 
-import static alexh.Unchecker.uncheck;
+import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import alexh.Fluent;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import javax.annotation.Nullable;
 import java.io.*;
 import java.time.Instant;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class ScriptRunner {
 
@@ -20,13 +27,18 @@ public class ScriptRunner {
     private final ProcessBuilder builder;
     private Optional<File> outputDir = Optional.empty();
     private Executor exe = ForkJoinPool.commonPool();
+    private Optional<RunControl> control = Optional.empty();
+    private Optional<RunContext> context = Optional.empty();
+    private Optional<String> metricName = Optional.empty();
+    private long timeoutSeconds;
     private final Fluent.Map<Object, Object> status = new Fluent.LinkedHashMap<>();
     private final File script;
 
     public ScriptRunner(String scriptPath) {
         try (BufferedReader reader = new BufferedReader(new FileReader(scriptPath))) {
             String header = reader.readLine();
-            this.builder = new ProcessBuilder(header.replaceFirst("^#!", ""), scriptPath);
+            this.builder = new ProcessBuilder(header.replaceFirst("^#!", ""), scriptPath)
+                .redirectErrorStream(true);
         }
         catch (IOException ex) { throw Throwables.propagate(ex); }
         this.script = new File(scriptPath);
@@ -39,7 +51,7 @@ public class ScriptRunner {
 
     public ScriptRunner useDirectory(File directory) {
         builder.directory(directory);
-        if (!directory.exists()) checkArgument(directory.mkdirs());
+        if (!directory.mkdirs()) checkArgument(directory.isDirectory());
         return this;
     }
 
@@ -48,34 +60,36 @@ public class ScriptRunner {
         return this;
     }
 
-    private static void print(@Nullable PrintWriter writer, String outLine) {
-        if (writer != null)  writer.println(outLine);
-        else log.info(outLine);
+    /**
+     * @param context statuses, metrics & sampler the script's status, output & resource use are recorded with, needed
+     *   with an output directory
+     */
+    public ScriptRunner inContext(RunContext context) {
+        this.context = Optional.of(context);
+        return this;
     }
 
-    private static void flush(@Nullable PrintWriter writer) {
-        if (writer != null) writer.flush();
+    /** @param control cancels the script, without one the script can't be cancelled, only timed out */
+    public ScriptRunner controlledBy(RunControl control) {
+        this.control = Optional.of(control);
+        return this;
     }
 
-    private static CompletableFuture<?> writeAsync(PrintWriter writer, BufferedReader reader, Executor exe) {
-        return CompletableFuture.supplyAsync(uncheck(reader::readLine), exe)
-            .thenCompose(line -> {
-                if (line != null) {
-                    print(writer, line);
-                    flush(writer);
-                    return writeAsync(writer, reader, exe);
-                }
-                return CompletableFuture.completedFuture(null);
-            });
+    /** @param timeoutSeconds time after starting to kill the script's processes, 0 for no timeout */
+    public ScriptRunner timeoutAfter(long timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+        return this;
+    }
+
+    /** @param metricName timer to record the script's duration in, see {@link RunMetrics#scriptRan} */
+    public ScriptRunner measuredAs(String metricName) {
+        this.metricName = Optional.of(metricName);
+        return this;
     }
 
     private void writeStatus() {
-        outputDir.ifPresent(dir -> {
-            try (PrintWriter writer = new PrintWriter(new File(dir, script.getName() + "-status.json"))) {
-                writer.write(new ObjectMapper().writeValueAsString(status));
-            }
-            catch (IOException ex) { Throwables.propagate(ex); }
-        });
+        outputDir.ifPresent(dir -> context.get().statuses.update(new File(dir, script.getName() + "-status.json"),
+            status));
     }
 
     private Optional<File> outLog() {
@@ -84,44 +98,103 @@ public class ScriptRunner {
 
     /** @return future with the script exit code as result */
     public CompletableFuture<Integer> run() {
-        outputDir.filter(file -> !file.getParentFile().exists())
-            .ifPresent(outFile -> checkArgument(outFile.getParentFile().mkdirs()));
+        checkState(context.isPresent() || !outputDir.isPresent(), "Output directory without a context");
+        checkState(context.isPresent() || this.control.isPresent(), "Neither a control nor a context to kill with");
+        RunControl control = this.control.orElseGet(() -> new RunControl(context.get().killer));
+        outputDir.filter(dir -> !dir.mkdirs()).ifPresent(dir -> checkArgument(dir.isDirectory()));
+
+        Optional<OutputBroadcast> broadcast = outLog().map(OutputBroadcast::open);
+        status.append("queued", Instant.now().toString());
+        writeStatus();
+        long queued = System.nanoTime();
 
         return CompletableFuture.supplyAsync(() -> {
-            ExecutorService writerPool = null;
-            try (@Nullable PrintWriter writer = outLog().isPresent() ? new PrintWriter(outLog().get()) : null) {
-                outputDir.filter(f -> !f.exists()).ifPresent(File::mkdirs);
+            context.ifPresent(context -> context.metrics.queueWaited(System.nanoTime() - queued));
+            if (control.isCancelled()) {
+                appendCancelled(control, false);
+                writeStatus();
+                broadcast.ifPresent(OutputBroadcast::close);
+                return RunControl.CANCELLED_EXIT_CODE;
+            }
 
+            // an index of a previous log in the directory would be stale
+            outLog().map(LogIndex::indexFile).ifPresent(File::delete);
+            try (OutputStream out = outLog().isPresent() ? new FileOutputStream(outLog().get()) : ByteStreams.nullOutputStream()) {
                 status.append("started", Instant.now().toString());
                 writeStatus();
+                long started = System.nanoTime();
 
                 Process process = builder.start();
-                writerPool = Executors.newWorkStealingPool(2);
-
-                try (InputStream in = process.getInputStream();
-                     BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-                     InputStream errorStream = process.getErrorStream();
-                     BufferedReader errReader = new BufferedReader(new InputStreamReader(errorStream))) {
-
-                    CompletableFuture<?> errWrite = writeAsync(writer, errReader, writerPool);
-                    CompletableFuture<?> stdWrite = writeAsync(writer, reader, writerPool);
-
-                    process.waitFor();
-
-                    status.append("ended", Instant.now().toString())
-                        .append("exitCode", process.exitValue());
-                    writeStatus();
-
-                    try {
-                        stdWrite.get(250, TimeUnit.MILLISECONDS);
-                        errWrite.get(250, TimeUnit.MILLISECONDS);
-                    }
-                    catch (TimeoutException timeout) { log.warn("Timed out waiting for input streams to write", timeout); }
+                control.started(process);
+                process.getOutputStream().close();
+                AtomicBoolean timedOut = new AtomicBoolean();
+                Optional<ScheduledFuture<?>> timeout = Optional.of(timeoutSeconds)
+                    .filter(seconds -> seconds > 0)
+                    .map(seconds -> control.killer().schedule(() -> {
+                        timedOut.set(true);
+                        control.killer().kill(process);
+                    }, seconds, TimeUnit.SECONDS));
+
+                Consumer<String> publish = broadcast.isPresent() ?
+                    broadcast.get()::publish :
+                    lines -> log.info(lines.trim());
+                Optional<LogIndex.Builder> index = outLog().map(outLog -> new LogIndex.Builder());
+                Optional<Consumer<String>> lineListener = Optional.of(index.isPresent() ?
+                    publish.andThen(index.get()::add) : publish);
+                Optional<ProcessSampler.Usage> usage = context.flatMap(context -> context.sampler.track(process));
+                Optional<Map<String, Object>> resources;
+                OutputPump pump = new OutputPump(out, lineListener, control.outputLimit(),
+                    context.map(context -> context.metrics));
+                try (InputStream in = process.getInputStream()) {
+                    pump.pump(in);
+                }
+                finally {
+                    // sampled first, as the process is reaped soon after its output ends
+                    resources = usage.map(ProcessSampler.Usage::finish);
+                    timeout.ifPresent(scheduled -> scheduled.cancel(false));
                 }
+                if (pump.elidedBytes() > 0) status.append("outputElidedBytes", pump.elidedBytes());
+                if (pump.droppedLines() > 0) status.append("outputDroppedLines", pump.droppedLines());
+
+                // an index of output since elided would take space & match searches the log can't
+                if (index.isPresent()) writeIndex(pump.elidedBytes() > 0 ? indexStored() : index.get());
+
+                // output is fully drained only once the process & any children holding the pipe are done
+                process.waitFor();
+                control.ended(process);
+                long ran = System.nanoTime() - started;
+                metricName.ifPresent(name -> context.ifPresent(context -> context.metrics.scriptRan(name, ran)));
+                status.append("ended", Instant.now().toString())
+                    .append("exitCode", process.exitValue());
+                resources.ifPresent(status::appendAll);
+                appendCancelled(control, timedOut.get());
+                writeStatus();
+
                 return process.exitValue();
             }
             catch (Exception ex) { ex.printStackTrace(); return 1; }
-            finally { if (writerPool != null) writerPool.shutdownNow(); }
+            finally { broadcast.ifPresent(OutputBroadcast::close); }
         }, exe);
     }
-}
\ No newline at end of file
+
+    private LogIndex.Builder indexStored() throws IOException {
+        LogIndex.Builder index = new LogIndex.Builder();
+        try (Reader reader = new InputStreamReader(new FileInputStream(outLog().get()), UTF_8)) {
+            char[] chunk = new char[64 * 1024];
+            for (int read = reader.read(chunk); read != -1; read = reader.read(chunk))
+                index.add(new String(chunk, 0, read));
+        }
+        return index;
+    }
+
+    private void writeIndex(LogIndex.Builder index) {
+        try { index.write(outLog().get()); }
+        catch (IOException | RuntimeException ex) { log.warn("Failed to index " + outLog().get(), ex); }
+    }
+
+    /** @param timedOut whether the script's own timeout passed */
+    private void appendCancelled(RunControl control, boolean timedOut) {
+        if (control.isCancelled()) status.append("cancelled", true);
+        if (timedOut || control.isTimedOut()) status.append("timedOut", true);
+    }
+}
@@ -1,90 +1,366 @@
 package alexh.ci.model;
 
 import static alexh.Unchecker.unchecked;
+import static alexh.Unchecker.uncheckedGet;
+import static alexh.weak.Converter.convert;
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Collections.emptyMap;
 import alexh.Fluent;
+import alexh.ci.LogReader;
+import alexh.ci.OutputLimit;
+import alexh.ci.RunContext;
+import alexh.ci.RunControl;
 import alexh.weak.Dynamic;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.apache.commons.io.FileUtils;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class Job {
 
+    private static final ObjectMapper mapper = new ObjectMapper();
+
     public Script okScript;
+    /** time to cancel a run after, from when it's started including any time queued, 0 for no timeout */
+    public long timeoutSeconds;
+    public OnCancel onCancel = OnCancel.SKIP;
+    /** time to wait for further run requests before starting a requested run, 0 to start right away */
+    public long debounceSeconds;
+    /** runs of the job that may be active at once, more than 1 needs run work directories that aren't shared */
+    public int concurrentRuns = 1;
+    /** bounds each script's stored output */
+    public OutputLimit outputLimit = new OutputLimit();
 
     // for update ui -> api only
     public Integer id;
 
-    public void validateIn() {
+    /** @param workDirectories how the job's runs get their work directories */
+    public void validateIn(WorkDirectories.Mode workDirectories) {
         if (okScript == null)
             throw new WebApplicationException(Response.status(400)
                 .entity(ImmutableMap.of("message", "Missing Job#okScript"))
                 .build());
+        if (timeoutSeconds < 0 || onCancel == null || debounceSeconds < 0 || concurrentRuns < 1 || outputLimit == null)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message",
+                    "Invalid Job#timeoutSeconds/onCancel/debounceSeconds/concurrentRuns/outputLimit"))
+                .build());
+        if (concurrentRuns > 1 && workDirectories == WorkDirectories.Mode.SHARED)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Job#concurrentRuns must be 1 with shared work directories"))
+                .build());
+        outputLimit.validateIn();
         okScript.validateIn();
     }
 
-    public WrittenJob writeTo(File directory) {
-        return new WrittenJob(this, directory);
+    /** What follows a script cancelled with its run, or by the run timing out */
+    public enum OnCancel {
+        /** the rest of the run is skipped */
+        SKIP("skip"),
+        /** the cancelled script's error script runs, eg to clean up, not cancelled along with the run */
+        ERROR_SCRIPT("errorScript");
+
+        private final String value;
+
+        OnCancel(String value) {
+            this.value = value;
+        }
+
+        @JsonValue
+        public String value() {
+            return value;
+        }
+
+        @JsonCreator
+        public static OnCancel fromValue(String value) {
+            return Stream.of(values()).filter(onCancel -> onCancel.value.equals(value)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown onCancel " + value));
+        }
+    }
+
+    /** fields a job listing may include, see {@link WrittenJob#listing} */
+    public static final Set<String> LISTING_FIELDS = ImmutableSet.of("id", "timeoutSeconds", "onCancel",
+        "debounceSeconds", "concurrentRuns", "outputLimit", "latestRun");
+
+    /** @param context statuses of the written job's runs */
+    public WrittenJob writeTo(File directory, RunContext context) {
+        return new WrittenJob(this, directory, context);
     }
 
     public static class WrittenJob extends Job {
         public final Script.WrittenScript okScript;
         public final int id;
         private final File directory;
+        private final RunContext context;
+        private final AtomicInteger latestRun;
 
-        public WrittenJob(Job job, File directory) {
+        public WrittenJob(Job job, File directory, RunContext context) {
             if (!directory.exists()) checkArgument(directory.mkdirs());
             File scriptDir = new File(directory, "scripts");
             if (!scriptDir.exists()) checkArgument(scriptDir.mkdir());
+            // remove scripts no longer in the job, runs execute their own copies
+            unchecked(() -> FileUtils.cleanDirectory(scriptDir));
 
             this.directory = directory;
+            this.context = context;
             this.id = Integer.valueOf(directory.getName());
-            this.okScript = new Script.WrittenScript(job.okScript, new File(scriptDir, "script-o.sh"));
+            this.okScript = new Script.WrittenScript(job.okScript, new File(scriptDir, "script-o.sh"), context);
+            this.timeoutSeconds = job.timeoutSeconds;
+            this.onCancel = job.onCancel;
+            this.debounceSeconds = job.debounceSeconds;
+            this.concurrentRuns = job.concurrentRuns;
+            this.outputLimit = job.outputLimit;
+            this.latestRun = new AtomicInteger(listLatestRun());
+            writeConfig();
         }
 
-        public WrittenJob(File directory) {
+        public WrittenJob(File directory, RunContext context) {
             this.directory = directory;
+            this.context = context;
             this.id = Integer.valueOf(directory.getName());
-            this.okScript = new Script.WrittenScript(new File(directory, "scripts/script-o.sh"));
+            this.okScript = new Script.WrittenScript(new File(directory, "scripts/script-o.sh"), context);
+            this.latestRun = new AtomicInteger(listLatestRun());
+            readConfig();
         }
 
-        public CompletableFuture<Integer> run(Executor executor) {
-            // todo not always run in runs/1
-            File runsDir = new File(okScript.location.getParentFile().getParentFile(), "runs/1");
-            if (!runsDir.exists()) checkArgument(runsDir.mkdirs());
-            unchecked(() -> FileUtils.cleanDirectory(runsDir));
-            return okScript.run(runsDir, executor);
+        /** settings other than scripts, only written when not default */
+        private File configLocation() {
+            return new File(directory, "config.json");
         }
 
-        public Map<String, Object> status(int runId) {
-            File runDir = new File(directory, "runs/"+ runId);
+        private void writeConfig() {
+            Map<String, Object> config = new LinkedHashMap<>();
+            if (timeoutSeconds > 0) config.put("timeoutSeconds", timeoutSeconds);
+            if (onCancel != OnCancel.SKIP) config.put("onCancel", onCancel);
+            if (debounceSeconds > 0) config.put("debounceSeconds", debounceSeconds);
+            if (concurrentRuns != 1) config.put("concurrentRuns", concurrentRuns);
+            if (outputLimit.limits()) config.put("outputLimit", outputLimit);
+
+            if (!config.isEmpty()) unchecked(() -> mapper.writeValue(configLocation(), config));
+            else if (configLocation().exists()) checkArgument(configLocation().delete());
+        }
+
+        private void readConfig() {
+            if (!configLocation().exists()) return;
+            Dynamic config = Dynamic.from(uncheckedGet(() -> mapper.readValue(configLocation(), Map.class)));
+
+            config.get("timeoutSeconds").maybe()
+                .ifPresent(timeout -> this.timeoutSeconds = timeout.convert().intoLong());
+            config.get("onCancel").maybe()
+                .ifPresent(onCancel -> this.onCancel = OnCancel.fromValue(onCancel.asString()));
+            config.get("debounceSeconds").maybe()
+                .ifPresent(debounce -> this.debounceSeconds = debounce.convert().intoLong());
+            config.get("concurrentRuns").maybe()
+                .ifPresent(concurrent -> this.concurrentRuns = concurrent.convert().intoInteger());
+            config.get("outputLimit").maybe()
+                .ifPresent(limit -> this.outputLimit = mapper.convertValue(limit.asObject(), OutputLimit.class));
+        }
+
+        private int listLatestRun() {
+            return runIds().max().orElse(0);
+        }
+
+        /** @return ids of runs on disk */
+        public IntStream runIds() {
+            String[] runs = new File(directory, "runs").list();
+            return runs == null ? IntStream.empty() : Stream.of(runs)
+                .filter(name -> convert(name).intoIntegerWorks())
+                .mapToInt(Integer::valueOf);
+        }
+
+        /** @return id of the most recently started run, 0 if never run */
+        public int latestRun() {
+            return latestRun.get();
+        }
+
+        /** @return id of a new run, with its numbered run directory created */
+        public int allocateRun() {
+            int runId = latestRun.incrementAndGet();
+            // run directory may be created by another instance of this job
+            while (!runDirectory(runId).mkdirs()) {
+                if (!runDirectory(runId).exists())
+                    throw new IllegalStateException("Failed to create " + runDirectory(runId));
+                runId = latestRun.incrementAndGet();
+            }
+            return runId;
+        }
+
+        /** @return control for a new run, timed out after the job's timeout until the run exits */
+        public RunControl control(CompletableFuture<Integer> exit) {
+            RunControl control = new RunControl(context.killer, onCancel == OnCancel.ERROR_SCRIPT, outputLimit);
+            if (timeoutSeconds > 0) {
+                ScheduledFuture<?> timeout = control.timeOutAfter(timeoutSeconds, TimeUnit.SECONDS);
+                exit.whenComplete((code, ex) -> timeout.cancel(false));
+            }
+            return control;
+        }
+
+        /**
+         * Starts a run in the next numbered run directory, with a work directory from the job's template. The run
+         * executes copies of the job's current scripts, so isn't affected by the job being updated
+         */
+        public Run run(Executor executor, WorkDirectories workDirectories) {
+            int runId = allocateRun();
+            File runDir = runDirectory(runId);
+            okScript.writeRunCopies(runDir);
+            CompletableFuture<Integer> exit = new CompletableFuture<>();
+            RunControl control = control(exit);
+            // active from the start, so the run directory isn't cleaned up while queued
+            Run run = new Run(id, runId, exit, control);
+            Runnable runEnded = context.metrics.runStarted(id);
+            workDirectories.create(new File(directory, "work"), runDir)
+                .thenCompose(work -> okScript.run(runDir, work, executor, control)
+                    .whenComplete((code, ex) -> workDirectories.release(work)))
+                .whenComplete((code, ex) -> {
+                    runEnded.run();
+                    if (ex != null) {
+                        // eg the work directory failed to copy, so the script never ran to record its end
+                        okScript.failed(runDir, ex instanceof CompletionException ? ex.getCause() : ex);
+                        exit.complete(1);
+                    }
+                    else exit.complete(code);
+                });
+            return run;
+        }
+
+        /** @param includeLog whether script statuses should include full logs */
+        public Map<String, Object> status(int runId, boolean includeLog) {
+            File runDir = runDirectory(runId);
             if (!runDir.exists()) return emptyMap();
 
-            Map rootScriptStatus = okScript.status(runDir);
+            Map rootScriptStatus = okScript.status(runDir, includeLog);
+            return new Fluent.LinkedHashMap<String, Object>()
+                .appendAll(summary(runId, rootScriptStatus))
+                .append("okScriptStatus", rootScriptStatus);
+        }
+
+        /**
+         * Writes status with full logs, as {@link #status(int, boolean)}, streaming logs from disk so memory use
+         * doesn't depend on log size
+         */
+        public void writeStatus(int runId, JsonGenerator generator) throws IOException {
+            File runDir = runDirectory(runId);
+            generator.writeStartObject();
+            if (runDir.exists()) {
+                for (Map.Entry<String, Object> entry : summary(runId, okScript.status(runDir, false)).entrySet())
+                    generator.writeObjectField(entry.getKey(), entry.getValue());
+                generator.writeFieldName("okScriptStatus");
+                okScript.writeStatus(runDir, generator);
+            }
+            generator.writeEndObject();
+        }
+
+        private static Map<String, Object> summary(int runId, Map rootScriptStatus) {
             LinkedList<Dynamic> statuses = listStatuses(rootScriptStatus);
 
-            Map<String, Object> status = new Fluent.HashMap<String, Object>()
-                .append("okScriptStatus", rootScriptStatus)
+            Map<String, Object> status = new Fluent.LinkedHashMap<String, Object>()
                 .append("run", runId);
+            for (String flag : new String[] {"cancelled", "timedOut", "aborted"})
+                if (anyFlagged(Dynamic.from(rootScriptStatus), flag)) status.put(flag, true);
+            if (statuses.isEmpty()) return status;
 
             statuses.getFirst().get("started").maybe()
                 .ifPresent(started -> status.put("started", started.asString()));
-            statuses.getLast().get("ended").maybe()
+            // a successful script with parallel scripts ends when they've all ended
+            Dynamic last = statuses.getLast();
+            boolean hasParallel = last.get("parallelStatus").isPresent() &&
+                last.get("exitCode").maybe().map(exit -> exit.convert().intoInteger() == 0).orElse(false);
+            last.get(hasParallel ? "parallelEnded" : "ended").maybe()
                 .ifPresent(ended -> status.put("ended", ended.asString()));
-            statuses.getLast().get("exitCode").maybe()
+            last.get(hasParallel ? "parallelExitCode" : "exitCode").maybe()
                 .ifPresent(exitCode -> status.put("exitCode", exitCode.convert().intoInteger()));
 
             return status;
         }
 
-        private LinkedList<Dynamic> listStatuses(Map rootScriptStatus) {
+        /**
+         * @param fields of {@link #LISTING_FIELDS}
+         * @return summary row of the job with only the fields, without scripts, latestRun being the summary of the
+         *   latest run's status, null if never run
+         *   {
+         *     id: 1,
+         *     latestRun: { run: 3, started: "2015-06-12T09:09:52.688Z", ended: "...", exitCode: 0 }
+         *   }
+         */
+        public Map<String, Object> listing(Collection<String> fields) {
+            Map<String, Object> row = new Fluent.LinkedHashMap<>();
+            for (String field : fields) {
+                switch (field) {
+                    case "id": row.put(field, id); break;
+                    case "timeoutSeconds": row.put(field, timeoutSeconds); break;
+                    case "onCancel": row.put(field, onCancel); break;
+                    case "debounceSeconds": row.put(field, debounceSeconds); break;
+                    case "concurrentRuns": row.put(field, concurrentRuns); break;
+                    case "outputLimit": row.put(field, outputLimit); break;
+                    case "latestRun":
+                        int runId = latestRun();
+                        row.put(field, runId == 0 ? null :
+                            summary(runId, okScript.status(runDirectory(runId), false)));
+                        break;
+                    default: throw new IllegalArgumentException("Unknown listing field " + field);
+                }
+            }
+            return row;
+        }
+
+        /**
+         * @return validator of the run's status, changing with any script status or output. Uses statuses in
+         *   memory & log sizes, without reading logs
+         */
+        public String statusVersion(int runId) {
+            File runDir = runDirectory(runId);
+            Hasher hasher = Hashing.murmur3_128().newHasher().putInt(runId).putBoolean(runDir.exists());
+            okScript.tree().forEach(script -> {
+                File outLog = script.outLog(runDir);
+                File log = outLog.exists() ? outLog : LogReader.compressed(outLog);
+                hasher.putInt(context.statuses.get(script.statusFile(runDir)).hashCode())
+                    .putLong(log.length())
+                    .putLong(log.lastModified());
+            });
+            return hasher.hash().toString();
+        }
+
+        /** @return output log of the named script in the run, which may not exist */
+        public Optional<File> outLog(int runId, String scriptName) {
+            return okScript.find(scriptName).map(script -> script.outLog(runDirectory(runId)));
+        }
+
+        public File runDirectory(int runId) {
+            return new File(directory, "runs/"+ runId);
+        }
+
+        /** @return whether the script status or any descendant's has the flag, including those never started */
+        private static boolean anyFlagged(Dynamic scriptStatus, String flag) {
+            if (!scriptStatus.isPresent()) return false;
+            return scriptStatus.get(flag).isPresent() ||
+                Stream.of("okScriptStatus", "errorScriptStatus").anyMatch(key -> anyFlagged(scriptStatus.get(key), flag)) ||
+                scriptStatus.get("parallelStatus").children().anyMatch(parallel -> anyFlagged(parallel, flag));
+        }
+
+        private static LinkedList<Dynamic> listStatuses(Map rootScriptStatus) {
             LinkedList<Dynamic> list = new LinkedList<>();
 
             Dynamic scriptStatus = Dynamic.from(rootScriptStatus);
@@ -0,0 +1,238 @@
+package alexh.ci.model;
+
+import static alexh.weak.Converter.convert;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardWatchEventKinds.*;
+import alexh.ci.RunContext;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-memory index of the jobs directory, loaded on start & kept in sync with changes made through the api
+ * and, via a file watcher, changes made to the directory by anything else
+ */
+public class JobCatalog implements Managed {
+
+    private static final Logger log = LoggerFactory.getLogger(JobCatalog.class);
+
+    /** writes batches of new jobs, bounded so a large batch doesn't hog the disk or the common pool */
+    private static final ExecutorService writers = Executors.newFixedThreadPool(4,
+        new ThreadFactoryBuilder().setNameFormat("job-writer-%d").setDaemon(true).build());
+
+    private final File root;
+    private final RunContext context;
+    private final ConcurrentSkipListMap<Integer, Job.WrittenJob> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicInteger latestId = new AtomicInteger();
+    /** distinguishes versions of this catalog instance from those of earlier processes */
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong version = new AtomicLong();
+    /** catalog version each job last changed at */
+    private final Map<Integer, Long> jobVersions = new ConcurrentHashMap<>();
+    private WatchService watcher;
+    private Thread watchThread;
+
+    /** @param context statuses & metrics of the jobs' runs */
+    public JobCatalog(File root, RunContext context) {
+        this.root = root;
+        this.context = context;
+    }
+
+    public File root() {
+        return root;
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (!root.exists()) checkArgument(root.mkdirs());
+
+        watcher = FileSystems.getDefault().newWatchService();
+        root.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE);
+
+        Stream.of(root.listFiles(File::isDirectory))
+            .filter(dir -> convert(dir.getName()).intoIntegerWorks())
+            .parallel()
+            .forEach(this::load);
+        log.info("Loaded {} jobs from {}", jobs.size(), root);
+
+        watchThread = new Thread(this::watch, "job-catalog-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        watcher.close();
+        watchThread.join();
+    }
+
+    /** @return all jobs in id order */
+    public Collection<Job.WrittenJob> all() {
+        return Collections.unmodifiableCollection(jobs.values());
+    }
+
+    /** @return jobs with ids after the given id, in id order, up to the limit */
+    public List<Job.WrittenJob> page(int afterId, int limit) {
+        return jobs.tailMap(afterId, false).values().stream().limit(limit).collect(Collectors.toList());
+    }
+
+    public Optional<Job.WrittenJob> get(int id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /** @return validator changing whenever any job is created, changed or removed */
+    public String version() {
+        return epoch + "-" + version.get();
+    }
+
+    /** @return validator changing whenever the job is changed or removed */
+    public String version(int id) {
+        return epoch + "-" + jobVersions.getOrDefault(id, 0L);
+    }
+
+    private void put(Job.WrittenJob job) {
+        jobs.put(job.id, job);
+        jobVersions.put(job.id, version.incrementAndGet());
+    }
+
+    private void remove(int id) {
+        jobs.remove(id);
+        jobVersions.put(id, version.incrementAndGet());
+        context.metrics.removeJob(id);
+    }
+
+    /** @return newly written job with the next available id */
+    public Job.WrittenJob create(Job job) {
+        File jobDir = directory(latestId.incrementAndGet());
+        // id may be taken outside of the catalog, eg a job directory copied in
+        while (!jobDir.mkdirs()) {
+            if (!jobDir.exists()) throw new IllegalStateException("Failed to create " + jobDir);
+            jobDir = directory(latestId.incrementAndGet());
+        }
+
+        Job.WrittenJob written = job.writeTo(jobDir, context);
+        put(written);
+        return written;
+    }
+
+    /**
+     * Creates jobs with ids allocated in one step, writing a few at a time. A job that fails to write has its
+     * directory removed & doesn't stop the others
+     * @return each job's write, in the order given
+     */
+    public List<CompletableFuture<Job.WrittenJob>> createAll(List<Job> newJobs) {
+        int firstId = latestId.getAndAdd(newJobs.size()) + 1;
+        List<CompletableFuture<Job.WrittenJob>> written = new ArrayList<>();
+        for (int index = 0; index < newJobs.size(); index++) {
+            Job job = newJobs.get(index);
+            File jobDir = directory(firstId + index);
+            written.add(CompletableFuture.supplyAsync(() -> {
+                // id taken outside of the catalog, eg a job directory copied in
+                if (!jobDir.mkdirs()) {
+                    if (!jobDir.exists()) throw new IllegalStateException("Failed to create " + jobDir);
+                    return create(job);
+                }
+                try {
+                    Job.WrittenJob writtenJob = job.writeTo(jobDir, context);
+                    put(writtenJob);
+                    return writtenJob;
+                }
+                catch (RuntimeException ex) {
+                    log.error("Failed to write job " + jobDir, ex);
+                    FileUtils.deleteQuietly(jobDir);
+                    remove(Integer.valueOf(jobDir.getName()));
+                    throw ex;
+                }
+            }, writers));
+        }
+        return written;
+    }
+
+    /** @return job written over any existing job with the id */
+    public Job.WrittenJob update(int id, Job job) {
+        latestId.accumulateAndGet(id, Math::max);
+        Job.WrittenJob written = job.writeTo(directory(id), context);
+        put(written);
+        return written;
+    }
+
+    /** Moves the job directory aside, so it's no longer listed */
+    public void delete(int id) {
+        File jobDir = directory(id);
+        checkArgument(jobDir.renameTo(new File(root, id + "-deleted-" + Instant.now().toString().replace(":", ";"))));
+        remove(id);
+    }
+
+    private File directory(int id) {
+        return new File(root, String.valueOf(id));
+    }
+
+    private void load(File jobDir) {
+        int id = Integer.valueOf(jobDir.getName());
+        latestId.accumulateAndGet(id, Math::max);
+        File scriptDir = new File(jobDir, "scripts");
+        try {
+            if (scriptDir.exists()) put(new Job.WrittenJob(jobDir, context));
+        }
+        catch (Exception ex) {
+            // may be mid-write, a later event will reload it
+            log.debug("Could not load job " + jobDir, ex);
+        }
+
+        try {
+            jobDir.toPath().register(watcher, ENTRY_CREATE);
+            if (scriptDir.exists()) scriptDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        }
+        catch (NoSuchFileException ex) {
+            remove(id);
+        }
+        catch (IOException ex) {
+            log.warn("Failed to watch job " + jobDir + ", changes made outside of the api won't be seen", ex);
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) continue;
+                    Path changed = dir.resolve((Path) event.context());
+
+                    if (dir.equals(root.toPath())) {
+                        String name = changed.getFileName().toString();
+                        if (!convert(name).intoIntegerWorks()) continue;
+                        if (event.kind() == ENTRY_DELETE) remove(Integer.valueOf(name));
+                        else if (changed.toFile().isDirectory()) load(changed.toFile());
+                    }
+                    else if (dir.getParent().equals(root.toPath())) {
+                        // job directory, only interested in its scripts directory appearing
+                        if (changed.getFileName().toString().equals("scripts")) load(dir.toFile());
+                    }
+                    else load(dir.getParent().toFile());
+                }
+                if (!key.reset() && dir.equals(root.toPath())) return;
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ex) {
+            log.debug("Stopped watching " + root);
+        }
+    }
+}
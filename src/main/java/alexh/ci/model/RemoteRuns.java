@@ -0,0 +1,269 @@
+package alexh.ci.model;
+
+import static com.google.common.base.Charsets.UTF_8;
+import alexh.Fluent;
+import alexh.ci.LogIndex;
+import alexh.ci.OutputBroadcast;
+import alexh.ci.RunContext;
+import alexh.ci.RunControl;
+import com.google.common.io.Files;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Runs executed by remote workers polling for work, see {@link alexh.ci.worker.Worker}. Runs are queued until
+ * leased by a worker, which keeps the lease by regularly syncing the run's output & script statuses back. A lease
+ * not synced within the lease time is expired, its run cleared & queued again for another worker
+ */
+public class RemoteRuns implements Managed {
+
+    private static final Logger log = LoggerFactory.getLogger(RemoteRuns.class);
+
+    private final PriorityBlockingQueue<Queued> queue = new PriorityBlockingQueue<>(11,
+        Comparator.comparingInt((Queued queued) -> -queued.priority).thenComparingLong(queued -> queued.sequence));
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Duration leaseTime;
+    private final ScheduledExecutorService expirer;
+    private final RunContext context;
+
+    /**
+     * @param expirer executor to check for expired leases & cancelled queued runs with
+     * @param context statuses synced runs are recorded in
+     */
+    public RemoteRuns(Duration leaseTime, ScheduledExecutorService expirer, RunContext context) {
+        this.leaseTime = leaseTime;
+        this.expirer = expirer;
+        this.context = context;
+    }
+
+    @Override
+    public void start() {
+        expirer.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stop() {}
+
+    /** Queues a run of the job for a worker, runs with a higher priority are leased first */
+    public Run submit(Job.WrittenJob job, int priority) {
+        int runId = job.allocateRun();
+        CompletableFuture<Integer> exit = new CompletableFuture<>();
+        Run run = new Run(job.id, runId, exit, job.control(exit));
+        Runnable runEnded = context.metrics.runStarted(job.id);
+        exit.whenComplete((code, ex) -> runEnded.run());
+
+        queue.add(new Queued(job, run, priority, sequence.incrementAndGet()));
+        return run;
+    }
+
+    /**
+     * Waits for a queued run to lease to the worker
+     * @return the lease, empty if no run was queued within the wait
+     */
+    public Optional<Lease> lease(String worker, long wait, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(wait);
+        for (long remaining = unit.toNanos(wait); remaining > 0; remaining = deadline - System.nanoTime()) {
+            Queued queued = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (queued == null) break;
+            if (queued.run.control.isCancelled()) {
+                cancelled(queued);
+                continue;
+            }
+
+            Lease lease = new Lease(UUID.randomUUID().toString(), worker, queued, context);
+            leases.put(lease.id, lease);
+            log.info("Leased job {} run {} to {}", queued.job.id, queued.run.id, worker);
+            return Optional.of(lease);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Appends a worker's output to the run's logs & records its script statuses, renewing the lease
+     * @param logs output since the last sync by script name, eg "script-o.sh"
+     * @param statuses changed script statuses by script name
+     * @return the lease, empty if expired or completed
+     */
+    public Optional<Lease> sync(String leaseId, Map<String, String> logs, Map<String, Map<String, Object>> statuses)
+        throws IOException {
+        Lease lease = leases.get(leaseId);
+        if (lease == null || !lease.sync(logs, statuses)) return Optional.empty();
+        return Optional.of(lease);
+    }
+
+    /** @return whether the lease was held, otherwise its run has been or will be run by another worker */
+    public boolean complete(String leaseId, int exitCode) {
+        Lease lease = leases.remove(leaseId);
+        if (lease == null || !lease.end()) return false;
+        log.info("Job {} run {} completed by {} with exit code {}", lease.queued.job.id, lease.queued.run.id,
+            lease.worker, exitCode);
+        lease.queued.run.exit.complete(exitCode);
+        return true;
+    }
+
+    /**
+     * @return leased & queued runs
+     *   {
+     *     queued: 2,
+     *     leases: [
+     *       { lease: "e5c...", worker: "build-2", jobId: 1, run: 12, sinceSyncMillis: 350 }
+     *     ]
+     *   }
+     */
+    public Map<String, Object> status() {
+        return new Fluent.LinkedHashMap<String, Object>()
+            .append("queued", queue.size())
+            .append("leases", leases.values().stream().map(Lease::status).collect(Collectors.toList()));
+    }
+
+    public Duration leaseTime() {
+        return leaseTime;
+    }
+
+    private void expire() {
+        try {
+            long now = System.nanoTime();
+            for (Lease lease : leases.values()) {
+                if (now - lease.synced > leaseTime.toNanoseconds() && leases.remove(lease.id, lease) && lease.end())
+                    requeue(lease);
+            }
+            // cancelled runs may otherwise wait for a worker to poll
+            for (Queued queued : queue) {
+                if (queued.run.control.isCancelled() && queue.remove(queued)) cancelled(queued);
+            }
+        }
+        catch (RuntimeException ex) { log.error("Failed to expire leases", ex); }
+    }
+
+    /** Clears the run's output from the expired lease & queues it again, in its original place */
+    private void requeue(Lease lease) {
+        Queued queued = lease.queued;
+        log.warn("Lease of job {} run {} by {} expired, requeueing", queued.job.id, queued.run.id, lease.worker);
+        File runDirectory = queued.job.runDirectory(queued.run.id);
+        queued.job.okScript.tree().forEach(script -> {
+            context.statuses.forget(script.statusFile(runDirectory));
+            script.statusFile(runDirectory).delete();
+            script.outLog(runDirectory).delete();
+            LogIndex.indexFile(script.outLog(runDirectory)).delete();
+        });
+
+        if (queued.run.control.isCancelled()) cancelled(queued);
+        else queue.add(queued);
+    }
+
+    /** Ends a run cancelled before any worker ran it */
+    private void cancelled(Queued queued) {
+        File runDirectory = queued.job.runDirectory(queued.run.id);
+        Map<String, Object> status = new Fluent.LinkedHashMap<String, Object>()
+            .append("exitCode", RunControl.CANCELLED_EXIT_CODE)
+            .append("cancelled", true);
+        if (queued.run.control.isTimedOut()) status.put("timedOut", true);
+        context.statuses.update(queued.job.okScript.statusFile(runDirectory), status);
+        queued.run.exit.complete(RunControl.CANCELLED_EXIT_CODE);
+    }
+
+    private static class Queued {
+        final Job.WrittenJob job;
+        final Run run;
+        final int priority;
+        final long sequence;
+
+        Queued(Job.WrittenJob job, Run run, int priority, long sequence) {
+            this.job = job;
+            this.run = run;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /** A run leased to a worker */
+    public static class Lease {
+        public final String id;
+        public final String worker;
+        private final Queued queued;
+        private final RunContext context;
+        /** live output of scripts started but not yet ended, by script name */
+        private final Map<String, OutputBroadcast> broadcasts = new HashMap<>();
+        /** tokens of scripts' output, indexed once they end */
+        private final Map<String, LogIndex.Builder> indexes = new HashMap<>();
+        private volatile long synced = System.nanoTime();
+        private boolean ended;
+
+        private Lease(String id, String worker, Queued queued, RunContext context) {
+            this.id = id;
+            this.worker = worker;
+            this.queued = queued;
+            this.context = context;
+        }
+
+        public Job.WrittenJob job() {
+            return queued.job;
+        }
+
+        public Run run() {
+            return queued.run;
+        }
+
+        /** @return false if the lease has ended */
+        private synchronized boolean sync(Map<String, String> logs, Map<String, Map<String, Object>> statuses)
+            throws IOException {
+            if (ended) return false;
+            synced = System.nanoTime();
+            File runDirectory = queued.job.runDirectory(queued.run.id);
+
+            // logs first, a script's final status closes its live output
+            for (Map.Entry<String, String> output : logs.entrySet()) {
+                Optional<Script.WrittenScript> script = queued.job.okScript.find(output.getKey());
+                if (!script.isPresent() || output.getValue().isEmpty()) continue;
+                File outLog = script.get().outLog(runDirectory);
+                Files.append(output.getValue(), outLog, UTF_8);
+                broadcasts.computeIfAbsent(output.getKey(), name -> OutputBroadcast.open(outLog))
+                    .publish(output.getValue());
+                indexes.computeIfAbsent(output.getKey(), name -> new LogIndex.Builder()).add(output.getValue());
+            }
+            for (Map.Entry<String, Map<String, Object>> status : statuses.entrySet()) {
+                Optional<Script.WrittenScript> script = queued.job.okScript.find(status.getKey());
+                if (!script.isPresent()) continue;
+                context.statuses.update(script.get().statusFile(runDirectory), status.getValue());
+
+                boolean scriptEnded = status.getValue().containsKey("ended") ||
+                    status.getValue().containsKey("cancelled");
+                if (!scriptEnded) broadcasts.computeIfAbsent(status.getKey(),
+                    name -> OutputBroadcast.open(script.get().outLog(runDirectory)));
+                else {
+                    if (broadcasts.containsKey(status.getKey())) broadcasts.remove(status.getKey()).close();
+                    if (indexes.containsKey(status.getKey()))
+                        indexes.remove(status.getKey()).write(script.get().outLog(runDirectory));
+                }
+            }
+            return true;
+        }
+
+        /** @return false if already ended */
+        private synchronized boolean end() {
+            if (ended) return false;
+            ended = true;
+            broadcasts.values().forEach(OutputBroadcast::close);
+            broadcasts.clear();
+            return true;
+        }
+
+        private Map<String, Object> status() {
+            return new Fluent.LinkedHashMap<String, Object>()
+                .append("lease", id)
+                .append("worker", worker)
+                .append("jobId", queued.job.id)
+                .append("run", queued.run.id)
+                .append("sinceSyncMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - synced));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package alexh.ci.model;
+
+import alexh.ci.RunControl;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A started run of a job */
+public class Run {
+
+    /** runs not yet ended, keyed by [jobId, id] */
+    private static final Map<List<Integer>, Run> active = new ConcurrentHashMap<>();
+
+    public final int jobId;
+    public final int id;
+    /** completes with the exit code of the last script run */
+    public final CompletableFuture<Integer> exit;
+    public final RunControl control;
+
+    public Run(int jobId, int id, CompletableFuture<Integer> exit, RunControl control) {
+        this.jobId = jobId;
+        this.id = id;
+        this.exit = exit;
+        this.control = control;
+
+        List<Integer> key = Arrays.asList(jobId, id);
+        active.put(key, this);
+        exit.whenComplete((code, ex) -> active.remove(key));
+    }
+
+    /** @return the run if it hasn't yet ended */
+    public static Optional<Run> active(int jobId, int id) {
+        return Optional.ofNullable(active.get(Arrays.asList(jobId, id)));
+    }
+}
@@ -0,0 +1,93 @@
+package alexh.ci.model;
+
+import static java.util.stream.Collectors.toList;
+import alexh.ci.LogReader;
+import alexh.ci.OutputBroadcast;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Periodically removes runs outside the retention policy & gzips the logs of older runs. The latest
+ * run of a job is always kept uncompressed, & runs that haven't ended are left alone
+ */
+public class RunJanitor implements Managed {
+
+    private static final Logger log = LoggerFactory.getLogger(RunJanitor.class);
+
+    private final JobCatalog catalog;
+    private final ScheduledExecutorService executor;
+    private final int keepRuns;
+    private final int keepDays;
+    private final int compressAfterRuns;
+    private final Duration interval;
+
+    /**
+     * @param keepRuns number of most recent runs to keep per job, 0 for no limit
+     * @param keepDays days to keep runs for, 0 for no limit
+     * @param compressAfterRuns number of most recent runs per job with uncompressed logs
+     * @param interval time between clean ups
+     */
+    public RunJanitor(JobCatalog catalog, ScheduledExecutorService executor,
+                      int keepRuns, int keepDays, int compressAfterRuns, Duration interval) {
+        this.catalog = catalog;
+        this.executor = executor;
+        this.keepRuns = keepRuns;
+        this.keepDays = keepDays;
+        this.compressAfterRuns = Math.max(1, compressAfterRuns);
+        this.interval = interval;
+    }
+
+    @Override
+    public void start() {
+        executor.scheduleWithFixedDelay(this::cleanUp, interval.toMilliseconds(), interval.toMilliseconds(),
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {}
+
+    public void cleanUp() {
+        for (Job.WrittenJob job : catalog.all()) {
+            try { cleanUp(job); }
+            catch (Exception ex) { log.warn("Failed to clean up runs of job " + job.id, ex); }
+        }
+    }
+
+    private void cleanUp(Job.WrittenJob job) throws Exception {
+        // newest first
+        List<Integer> runIds = job.runIds().boxed().sorted((a, b) -> b - a).collect(toList());
+        long expiry = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(keepDays);
+
+        for (int index = 1; index < runIds.size(); index++) {
+            File runDir = job.runDirectory(runIds.get(index));
+            if (isActive(job.id, runIds.get(index), runDir)) continue;
+
+            if (keepRuns > 0 && index >= keepRuns || keepDays > 0 && runDir.lastModified() < expiry) {
+                log.debug("Removing {}", runDir);
+                FileUtils.deleteDirectory(runDir);
+            }
+            else if (index >= compressAfterRuns) {
+                for (File outLog : outLogs(runDir)) LogReader.compress(outLog);
+            }
+        }
+    }
+
+    private static File[] outLogs(File runDir) {
+        File[] logs = runDir.listFiles((dir, name) -> name.endsWith("-out.log"));
+        return logs == null ? new File[0] : logs;
+    }
+
+    /** @return whether the run hasn't ended, including while queued or creating its work directory */
+    private static boolean isActive(int jobId, int runId, File runDir) {
+        return Run.active(jobId, runId).isPresent() ||
+            Stream.of(outLogs(runDir)).anyMatch(outLog -> OutputBroadcast.live(outLog).isPresent());
+    }
+}
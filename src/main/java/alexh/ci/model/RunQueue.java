@@ -0,0 +1,157 @@
+package alexh.ci.model;
+
+import alexh.Fluent;
+import alexh.ci.RunScheduler;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Run requests per job. Requests while a job has its concurrent runs active, or a run pending, are coalesced into
+ * a single pending run, started once an active run ends with the job's latest scripts. Jobs with a debounce
+ * start a run once the debounce time has passed without further requests. Runs are started locally, or queued
+ * for remote workers when given remote runs. A job's requests are forgotten once it has no run active or pending
+ */
+public class RunQueue {
+
+    private final JobCatalog catalog;
+    private final RunScheduler scheduler;
+    private final WorkDirectories workDirectories;
+    private final ScheduledExecutorService timer;
+    private final Optional<RemoteRuns> remoteRuns;
+    private final Map<Integer, JobRuns> jobs = new ConcurrentHashMap<>();
+
+    public RunQueue(JobCatalog catalog, RunScheduler scheduler, WorkDirectories workDirectories,
+                    ScheduledExecutorService timer, Optional<RemoteRuns> remoteRuns) {
+        this.catalog = catalog;
+        this.scheduler = scheduler;
+        this.workDirectories = workDirectories;
+        this.timer = timer;
+        this.remoteRuns = remoteRuns;
+    }
+
+    /**
+     * @param priority pending runs take the highest priority of their requests
+     * @return result map, with the run id if started right away
+     *   {
+     *     run: 12
+     *   }
+     *   otherwise the number of requests coalesced into the pending run
+     *   {
+     *     pending: true,
+     *     coalesced: 3
+     *   }
+     */
+    public Map<String, Object> request(Job.WrittenJob job, int priority) {
+        Optional<Map<String, Object>> result;
+        // runs of a job forgotten in between refuse the request, retried with the job's new runs
+        do result = jobs.computeIfAbsent(job.id, JobRuns::new).request(job, priority);
+        while (!result.isPresent());
+        return result.get();
+    }
+
+    /**
+     * Requests a run of each job, as {@link #request}
+     * @return results in the order of the jobs, each with the job's id
+     *   {
+     *     id: 4,
+     *     run: 12
+     *   }
+     */
+    public List<Map<String, Object>> requestAll(List<Job.WrittenJob> jobs, int priority) {
+        return jobs.stream()
+            .map(job -> new Fluent.LinkedHashMap<String, Object>()
+                .append("id", job.id)
+                .appendAll(request(job, priority)))
+            .collect(Collectors.toList());
+    }
+
+    /** @return number of jobs with a pending run */
+    public int pendingRuns() {
+        return (int) jobs.values().stream().filter(runs -> runs.pending).count();
+    }
+
+    /** @return number of jobs with a run active or pending */
+    int trackedJobs() {
+        return jobs.size();
+    }
+
+    private class JobRuns {
+        private final int jobId;
+        private final Set<Run> active = new HashSet<>();
+        private volatile boolean pending;
+        private int pendingPriority;
+        private int coalesced;
+        private long lastRequest;
+        private Optional<ScheduledFuture<?>> debounce = Optional.empty();
+        private boolean forgotten;
+
+        JobRuns(int jobId) {
+            this.jobId = jobId;
+        }
+
+        /** @return result, empty if forgotten */
+        synchronized Optional<Map<String, Object>> request(Job.WrittenJob job, int priority) {
+            if (forgotten) return Optional.empty();
+            if (active.size() < job.concurrentRuns && !pending && job.debounceSeconds == 0)
+                return Optional.of(new Fluent.HashMap<String, Object>().append("run", start(job, priority).id));
+
+            pendingPriority = pending ? Math.max(pendingPriority, priority) : priority;
+            coalesced = pending ? coalesced + 1 : 1;
+            pending = true;
+            lastRequest = System.nanoTime();
+            if (job.debounceSeconds > 0) {
+                debounce.ifPresent(scheduled -> scheduled.cancel(false));
+                debounce = Optional.of(timer.schedule(this::startPending, job.debounceSeconds, TimeUnit.SECONDS));
+            }
+            return Optional.of(new Fluent.HashMap<String, Object>()
+                .append("pending", true)
+                .append("coalesced", coalesced));
+        }
+
+        private synchronized void startPending() {
+            if (!pending) return;
+
+            Optional<Job.WrittenJob> job = catalog.get(jobId);
+            if (!job.isPresent()) {
+                // deleted while pending
+                pending = false;
+                forgetIfIdle();
+                return;
+            }
+            if (active.size() >= job.get().concurrentRuns) return;
+            long sinceRequest = System.nanoTime() - lastRequest;
+            if (sinceRequest < TimeUnit.SECONDS.toNanos(job.get().debounceSeconds)) return;
+
+            pending = false;
+            start(job.get(), pendingPriority);
+        }
+
+        private Run start(Job.WrittenJob job, int priority) {
+            Run run = remoteRuns.isPresent() ? remoteRuns.get().submit(job, priority) :
+                job.run(scheduler.executor(String.valueOf(jobId), priority), workDirectories);
+            active.add(run);
+            run.exit.whenComplete((exit, ex) -> ended(run));
+            return run;
+        }
+
+        private synchronized void ended(Run run) {
+            active.remove(run);
+            startPending();
+            forgetIfIdle();
+        }
+
+        private void forgetIfIdle() {
+            if (!active.isEmpty() || pending) return;
+            forgotten = true;
+            jobs.remove(jobId, this);
+        }
+    }
+}
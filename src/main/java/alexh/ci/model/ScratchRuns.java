@@ -0,0 +1,218 @@
+package alexh.ci.model;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import alexh.Fluent;
+import alexh.ci.OutputLimit;
+import alexh.ci.RunContext;
+import alexh.ci.RunControl;
+import alexh.ci.ScriptRunner;
+import com.google.common.io.Files;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Ad-hoc script runs, each in its own directory under the scratch root, ideally on tmpfs. Runs share a pool, so
+ * run concurrently up to the pool's size, & are admitted only while few enough are running or queued. Ended runs
+ * are removed after their time to live, or oldest first while scratch runs take more than the size limit
+ */
+public class ScratchRuns implements Managed {
+
+    private static final Logger log = LoggerFactory.getLogger(ScratchRuns.class);
+
+    private static final String SCRIPT = "script.sh";
+    private static final String ID_PATTERN = "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}";
+    /** time to wait on stopping for killed scripts to end before removing their directories */
+    private static final long STOP_WAIT_SECONDS = 10;
+
+    private final File root;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService cleaner;
+    private final Semaphore admitted;
+    private final OutputLimit outputLimit;
+    private final long timeoutSeconds;
+    private final Duration timeToLive;
+    private final long maxSizeBytes;
+    private final RunContext context;
+    private final Map<String, Scratch> runs = new ConcurrentHashMap<>();
+
+    /**
+     * @param root directory of scratch runs, scratch directories left in it by an earlier process are removed
+     * @param pool runs scratch scripts, its thread count is the number that run at once
+     * @param maxAdmitted most scratch runs running or queued at once
+     * @param timeoutSeconds time to kill a scratch script after, 0 for no timeout
+     * @param timeToLive time to keep ended runs for
+     * @param context statuses of scratch runs
+     */
+    public ScratchRuns(File root, ExecutorService pool, ScheduledExecutorService cleaner, int maxAdmitted,
+                       OutputLimit outputLimit, long timeoutSeconds, Duration timeToLive, long maxSizeBytes,
+                       RunContext context) {
+        this.root = root;
+        this.pool = pool;
+        this.cleaner = cleaner;
+        this.admitted = new Semaphore(maxAdmitted);
+        this.outputLimit = outputLimit;
+        this.timeoutSeconds = timeoutSeconds;
+        this.timeToLive = timeToLive;
+        this.maxSizeBytes = maxSizeBytes;
+        this.context = context;
+    }
+
+    /** @return directory on tmpfs where /dev/shm is available, otherwise in the temp directory */
+    public static File defaultRoot() {
+        File sharedMemory = new File("/dev/shm");
+        File base = sharedMemory.isDirectory() && sharedMemory.canWrite() ?
+            sharedMemory :
+            new File(System.getProperty("java.io.tmpdir"));
+        return new File(base, "script-ci-scratch");
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (!root.mkdirs()) checkArgument(root.isDirectory());
+        for (File stale : Optional.ofNullable(root.listFiles()).orElse(new File[0]))
+            if (stale.getName().matches(ID_PATTERN)) FileUtils.deleteDirectory(stale);
+
+        long interval = Math.min(timeToLive.toMilliseconds(), TimeUnit.MINUTES.toMillis(1));
+        cleaner.scheduleWithFixedDelay(this::cleanUp, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /** Kills running scratch scripts & removes all scratch runs once they've ended */
+    @Override
+    public void stop() throws InterruptedException {
+        runs.values().forEach(scratch -> scratch.control.cancel());
+        try {
+            CompletableFuture<?>[] exits = runs.values().stream()
+                .map(scratch -> scratch.exit)
+                .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(exits).get(STOP_WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException | TimeoutException ex) { log.warn("Scratch runs didn't all end on stopping", ex); }
+        runs.keySet().forEach(this::remove);
+    }
+
+    /** @return id of the started run, empty if too many runs are running or queued */
+    public Optional<String> start(String script) throws IOException {
+        if (!admitted.tryAcquire()) return Optional.empty();
+        try {
+            String id = UUID.randomUUID().toString();
+            Scratch scratch = new Scratch(new File(root, id), new RunControl(context.killer, false, outputLimit));
+            File scriptFile = scratch.script();
+            checkArgument(scriptFile.getParentFile().mkdirs());
+            Files.write(script, scriptFile, UTF_8);
+
+            scratch.exit = new ScriptRunner(scriptFile.getAbsolutePath())
+                .useDirectory(new File(scratch.directory, "work"))
+                .outputTo(scratch.directory)
+                .executeWith(pool)
+                .inContext(context)
+                .controlledBy(scratch.control)
+                .timeoutAfter(timeoutSeconds)
+                .run()
+                .whenComplete((exit, ex) -> {
+                    scratch.endedMillis = System.currentTimeMillis();
+                    admitted.release();
+                });
+            runs.put(id, scratch);
+            return Optional.of(id);
+        }
+        catch (IOException | RuntimeException ex) {
+            admitted.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return run's script, status & log, empty if unknown or removed
+     *   {
+     *     id: "0f6c...",
+     *     script: "#!...",
+     *     started: "2015-06-12T09:09:52.688Z",
+     *     ended: "2015-06-12T09:09:52.721Z",
+     *     exitCode: 0,
+     *     log: "..."
+     *   }
+     */
+    public Optional<Map<String, Object>> get(String id) throws IOException {
+        Scratch scratch = runs.get(id);
+        if (scratch == null) return Optional.empty();
+
+        File outLog = scratch.outLog();
+        return Optional.of(new Fluent.LinkedHashMap<String, Object>()
+            .append("id", id)
+            .append("script", Files.toString(scratch.script(), UTF_8))
+            .appendAll(context.statuses.get(scratch.statusFile()))
+            .append("log", outLog.exists() ? Files.toString(outLog, UTF_8) : ""));
+    }
+
+    /** @return number of scratch runs kept, running or ended */
+    public int size() {
+        return runs.size();
+    }
+
+    private void cleanUp() {
+        try {
+            long expiry = System.currentTimeMillis() - timeToLive.toMilliseconds();
+            runs.forEach((id, scratch) -> {
+                if (scratch.hasEnded() && scratch.endedMillis < expiry) remove(id);
+            });
+
+            long size = FileUtils.sizeOfDirectory(root);
+            List<Map.Entry<String, Scratch>> ended = runs.entrySet().stream()
+                .filter(run -> run.getValue().hasEnded())
+                .sorted(Comparator.comparingLong(run -> run.getValue().endedMillis))
+                .collect(Collectors.toList());
+            for (Map.Entry<String, Scratch> run : ended) {
+                if (size <= maxSizeBytes) break;
+                size -= FileUtils.sizeOfDirectory(run.getValue().directory);
+                remove(run.getKey());
+            }
+        }
+        catch (RuntimeException ex) { log.warn("Failed to clean up scratch runs", ex); }
+    }
+
+    private void remove(String id) {
+        Scratch scratch = runs.remove(id);
+        if (scratch == null) return;
+        log.debug("Removing scratch run {}", id);
+        context.statuses.forget(scratch.statusFile());
+        FileUtils.deleteQuietly(scratch.directory);
+    }
+
+    private static class Scratch {
+        final File directory;
+        final RunControl control;
+        volatile CompletableFuture<Integer> exit;
+        /** time the run ended, 0 while queued or running */
+        volatile long endedMillis;
+
+        Scratch(File directory, RunControl control) {
+            this.directory = directory;
+            this.control = control;
+        }
+
+        boolean hasEnded() {
+            return endedMillis > 0;
+        }
+
+        File script() {
+            return new File(directory, "scripts/" + SCRIPT);
+        }
+
+        File statusFile() {
+            return new File(directory, SCRIPT + "-status.json");
+        }
+
+        File outLog() {
+            return new File(directory, SCRIPT + "-out.log");
+        }
+    }
+}
@@ -1,9 +1,21 @@
 package alexh.ci.model;
 
+import static alexh.Unchecker.unchecked;
 import static alexh.Unchecker.uncheckedGet;
-import static java.util.Collections.emptyMap;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+import alexh.Fluent;
+import alexh.ci.LogReader;
+import alexh.ci.RunContext;
+import alexh.ci.RunControl;
 import alexh.ci.ScriptRunner;
+import alexh.weak.Dynamic;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
@@ -13,19 +25,33 @@ import org.slf4j.LoggerFactory;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.time.Instant;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class Script {
 
     private static final Logger log = LoggerFactory.getLogger(Script.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
 
     public Optional<? extends Script> okScript = Optional.empty();
     public Optional<? extends Script> errorScript = Optional.empty();
+    /** scripts run concurrently once this script succeeds, before the ok/error script */
+    public List<? extends Script> parallel = emptyList();
+    public ParallelJoin parallelJoin = ParallelJoin.ALL;
+    /** time to kill the script after, failing with its killed exit code, 0 for no timeout */
+    public long timeoutSeconds;
+    /**
+     * glob patterns of the work directory files the script's result depends on, eg "src/**". When present
+     * & the result cache is enabled, a run with the same code & inputs as a successful run replays its log
+     */
+    public Optional<List<String>> cacheInputs = Optional.empty();
     public String code;
 
     public void validateIn() {
@@ -33,39 +59,125 @@ public class Script {
             throw new WebApplicationException(Response.status(400)
                 .entity(ImmutableMap.of("message", "Missing Script#code"))
                 .build());
+        if (parallel == null || parallelJoin == null)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Invalid Script#parallel"))
+                .build());
+        if (timeoutSeconds < 0)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Invalid Script#timeoutSeconds"))
+                .build());
+        if (cacheInputs == null || cacheInputs.isPresent() && cacheInputs.get().contains(null))
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Invalid Script#cacheInputs"))
+                .build());
         okScript.ifPresent(Script::validateIn);
         errorScript.ifPresent(Script::validateIn);
+        parallel.forEach(Script::validateIn);
+    }
+
+    /** How the parallel scripts are joined */
+    public enum ParallelJoin {
+        /** all run to completion, the first failure is the result */
+        ALL("all"),
+        /** the first failure cancels the rest */
+        FAIL_FAST("failFast");
+
+        private final String value;
+
+        ParallelJoin(String value) {
+            this.value = value;
+        }
+
+        @JsonValue
+        public String value() {
+            return value;
+        }
+
+        @JsonCreator
+        public static ParallelJoin fromValue(String value) {
+            return Stream.of(values()).filter(join -> join.value.equals(value)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown parallelJoin " + value));
+        }
     }
 
     public static class WrittenScript extends Script {
 
         public final Optional<WrittenScript> okScript;
         public final Optional<WrittenScript> errorScript;
+        public final List<WrittenScript> parallel;
 
         @JsonIgnore
         public final File location;
+        private final RunContext context;
 
-        public WrittenScript(Script script, File location) {
+        public WrittenScript(Script script, File location, RunContext context) {
             this.location = location;
+            this.context = context;
 
-            this.okScript = script.okScript.map(s -> new WrittenScript(s, childOkLocation()));
-            this.errorScript = script.errorScript.map(s -> new WrittenScript(s, childErrorLocation()));
+            this.okScript = script.okScript.map(s -> new WrittenScript(s, childOkLocation(), context));
+            this.errorScript = script.errorScript.map(s -> new WrittenScript(s, childErrorLocation(), context));
+            this.parallel = IntStream.range(0, script.parallel.size())
+                .mapToObj(index -> new WrittenScript(script.parallel.get(index), childParallelLocation(index),
+                    context))
+                .collect(toList());
+            this.parallelJoin = script.parallelJoin;
+            this.timeoutSeconds = script.timeoutSeconds;
+            this.cacheInputs = script.cacheInputs;
             this.code = script.code;
             try (PrintWriter writer = uncheckedGet(() -> new PrintWriter(location))) {
                 writer.write(code);
             }
+            writeSettings();
         }
 
-        public WrittenScript(File location) {
+        public WrittenScript(File location, RunContext context) {
             this.location = location;
+            this.context = context;
 
             this.code = uncheckedGet(() -> Files.toString(location, Charsets.UTF_8));
 
-            if (childOkLocation().exists()) this.okScript = Optional.of(new WrittenScript(childOkLocation()));
+            if (childOkLocation().exists()) this.okScript = Optional.of(new WrittenScript(childOkLocation(), context));
             else this.okScript = Optional.empty();
 
-            if (childErrorLocation().exists()) this.errorScript = Optional.of(new WrittenScript(childErrorLocation()));
+            if (childErrorLocation().exists())
+                this.errorScript = Optional.of(new WrittenScript(childErrorLocation(), context));
             else this.errorScript = Optional.empty();
+
+            this.parallel = new ArrayList<>();
+            for (int index = 0; childParallelLocation(index).exists(); index++)
+                this.parallel.add(new WrittenScript(childParallelLocation(index), context));
+
+            readSettings();
+        }
+
+        /** settings other than code & child scripts, only written when not default */
+        private File settingsLocation() {
+            return new File(location.getPath() + ".json");
+        }
+
+        private void writeSettings() {
+            Map<String, Object> settings = new LinkedHashMap<>();
+            if (parallelJoin != ParallelJoin.ALL) settings.put("parallelJoin", parallelJoin);
+            if (timeoutSeconds > 0) settings.put("timeoutSeconds", timeoutSeconds);
+            cacheInputs.ifPresent(inputs -> settings.put("cacheInputs", inputs));
+
+            if (!settings.isEmpty()) unchecked(() -> mapper.writeValue(settingsLocation(), settings));
+            else if (settingsLocation().exists()) checkArgument(settingsLocation().delete());
+        }
+
+        private void readSettings() {
+            if (!settingsLocation().exists()) return;
+            Dynamic settings = Dynamic.from(uncheckedGet(() -> mapper.readValue(settingsLocation(), Map.class)));
+
+            settings.get("parallelJoin").maybe()
+                .ifPresent(join -> this.parallelJoin = ParallelJoin.fromValue(join.asString()));
+            settings.get("timeoutSeconds").maybe()
+                .ifPresent(timeout -> this.timeoutSeconds = timeout.convert().intoLong());
+            settings.get("cacheInputs").maybe()
+                .ifPresent(inputs -> this.cacheInputs = Optional.of(inputs.children()
+                    .map(Dynamic::asString)
+                    .collect(toList())));
         }
 
         private File childOkLocation() {
@@ -76,43 +188,222 @@ public class Script {
             return new File(location.getPath().replaceFirst("\\.sh$", "") + "e.sh");
         }
 
-        public CompletableFuture<Integer> run(File runsDirectory, Executor executor) {
+        /** @param index 0-based index, file names are 1-based eg "script-op1.sh" */
+        private File childParallelLocation(int index) {
+            return new File(location.getPath().replaceFirst("\\.sh$", "") + "p" + (index + 1) + ".sh");
+        }
+
+        /** @param workDirectory directory the script runs in, shared by the run's scripts */
+        public CompletableFuture<Integer> run(File runsDirectory, File workDirectory, Executor executor,
+                                              RunControl control) {
             log.debug("Running script "+ location);
 
-            return new ScriptRunner(location.getAbsolutePath())
-                .outputTo(runsDirectory)
-                .useDirectory(new File(runsDirectory.getParentFile().getParentFile(),  "work"))
-                .executeWith(executor)
-                .run()
+            Optional<String> cacheKey = cacheInputs.filter(inputs -> !control.isCancelled())
+                .flatMap(inputs -> context.resultCache.flatMap(cache -> cache.key(location, code, workDirectory,
+                    inputs, location.getParentFile().getParentFile())));
+            Optional<Integer> cachedExit = cacheKey.flatMap(key -> replay(key, runsDirectory));
+
+            CompletableFuture<Integer> ran = cachedExit.isPresent() ?
+                CompletableFuture.completedFuture(cachedExit.get()) :
+                new ScriptRunner(runCopy(runsDirectory).getAbsolutePath())
+                    .outputTo(runsDirectory)
+                    .useDirectory(workDirectory)
+                    .executeWith(executor)
+                    .inContext(context)
+                    .controlledBy(control)
+                    .timeoutAfter(timeoutSeconds)
+                    .measuredAs(metricName())
+                    .run()
+                    .thenApply(exit -> {
+                        cacheKey.ifPresent(key -> storeResult(key, exit, runsDirectory));
+                        return exit;
+                    });
+
+            return ran
                 .thenCompose(exit -> {
                     log.debug(location + " ran with exit code: " + exit);
 
-                    if (exit == 0 && okScript.isPresent()) return okScript.get().run(runsDirectory, executor);
-                    else if (exit != 0 && errorScript.isPresent()) return errorScript.get().run(runsDirectory, executor);
+                    if (exit != 0 || parallel.isEmpty()) return CompletableFuture.completedFuture(exit);
+                    // parallel scripts never started end with the cancelled run, so it doesn't stay unended
+                    if (control.isCancelled()) return CompletableFuture.completedFuture(
+                        parallelEnded(runsDirectory, RunControl.CANCELLED_EXIT_CODE));
+                    return runParallel(runsDirectory, workDirectory, executor, control);
+                })
+                .thenCompose(exit -> {
+                    if (control.isCancelled()) {
+                        if (control.runsErrorScriptOnCancel() && errorScript.isPresent())
+                            return errorScript.get().run(runsDirectory, workDirectory, executor, control.cleanUp());
+                        return CompletableFuture.completedFuture(exit);
+                    }
+
+                    if (exit == 0 && okScript.isPresent())
+                        return okScript.get().run(runsDirectory, workDirectory, executor, control);
+                    else if (exit != 0 && errorScript.isPresent())
+                        return errorScript.get().run(runsDirectory, workDirectory, executor, control);
                     return CompletableFuture.completedFuture(exit);
                 });
         }
 
-        public Map<String, Object> status(File runsDirectory) {
+        /** Records this script as ended with an error, unless it's already ended, eg when it couldn't be started */
+        public void failed(File runsDirectory, Throwable ex) {
+            log.error("Run of " + location + " failed", ex);
+            File statusFile = statusFile(runsDirectory);
+            Map<String, Object> status = context.statuses.get(statusFile);
+            if (status.containsKey("ended")) return;
+            String now = Instant.now().toString();
+            Map<String, Object> failed = new LinkedHashMap<>();
+            failed.put("queued", now);
+            failed.put("started", now);
+            failed.putAll(status);
+            failed.put("ended", now);
+            failed.put("exitCode", 1);
+            failed.put("error", String.valueOf(ex.getMessage()));
+            context.statuses.update(statusFile, failed);
+        }
+
+        /** @return cached exit code, with the cached log & a status recorded for this run, empty if not cached */
+        private Optional<Integer> replay(String cacheKey, File runsDirectory) {
+            Optional<Integer> exit = context.resultCache.flatMap(cache -> cache.replay(cacheKey, outLog(runsDirectory)));
+            exit.ifPresent(exitCode -> {
+                String now = Instant.now().toString();
+                context.statuses.update(statusFile(runsDirectory), new Fluent.LinkedHashMap<>()
+                    .append("queued", now)
+                    .append("started", now)
+                    .append("ended", now)
+                    .append("exitCode", exitCode)
+                    .append("cached", cacheKey));
+            });
+            return exit;
+        }
+
+        /**
+         * Caches a successful run's result. Failures aren't cached as they may be transient, eg a network error, &
+         * cancelled or timed out runs aren't representative
+         */
+        private void storeResult(String cacheKey, int exit, File runsDirectory) {
+            if (exit != 0) return;
+            Map<String, Object> status = context.statuses.get(statusFile(runsDirectory));
+            if (status.containsKey("cancelled") || status.containsKey("timedOut")) return;
+            context.resultCache.ifPresent(cache -> cache.store(cacheKey, exit, outLog(runsDirectory)));
+        }
+
+        /** @return future with the first failed exit code of the parallel scripts, or 0 if all passed */
+        private CompletableFuture<Integer> runParallel(File runsDirectory, File workDirectory, Executor executor,
+                                                       RunControl control) {
+            RunControl branches = control.child();
+            AtomicInteger firstFailure = new AtomicInteger();
+
+            CompletableFuture<?>[] runs = parallel.stream()
+                .map(script -> script.run(runsDirectory, workDirectory, executor, branches).thenAccept(exit -> {
+                    if (exit != 0 && firstFailure.compareAndSet(0, exit) && parallelJoin == ParallelJoin.FAIL_FAST)
+                        branches.cancel();
+                }))
+                .toArray(CompletableFuture<?>[]::new);
+
+            return CompletableFuture.allOf(runs).thenApply(done -> parallelEnded(runsDirectory, firstFailure.get()));
+        }
+
+        /** @return exit code, recorded in this script's status as that of its parallel scripts */
+        private int parallelEnded(File runsDirectory, int exit) {
+            File statusFile = statusFile(runsDirectory);
+            context.statuses.update(statusFile, new Fluent.LinkedHashMap<>()
+                .appendAll(context.statuses.get(statusFile))
+                .append("parallelEnded", Instant.now().toString())
+                .append("parallelExitCode", exit));
+            return exit;
+        }
+
+        /** @return script node timer name, eg "runs.job.1.script-oe" */
+        private String metricName() {
+            String jobId = location.getAbsoluteFile().getParentFile().getParentFile().getName();
+            return MetricRegistry.name("runs", "job", jobId, location.getName().replaceFirst("\\.sh$", ""));
+        }
+
+        /** @return this script or a descendant with the file name, eg "script-oe.sh" */
+        public Optional<WrittenScript> find(String scriptName) {
+            return tree().filter(script -> script.location.getName().equals(scriptName)).findFirst();
+        }
+
+        /** @return this script followed by its descendants */
+        public Stream<WrittenScript> tree() {
+            return Stream.concat(Stream.of(this),
+                Stream.concat(Stream.of(okScript, errorScript).filter(Optional::isPresent).map(Optional::get),
+                              parallel.stream())
+                    .flatMap(WrittenScript::tree));
+        }
+
+        /**
+         * Writes this script & its descendants into the run directory, which the run executes, so changes to the
+         * job don't affect runs already started
+         */
+        public void writeRunCopies(File runsDirectory) {
+            File scripts = new File(runsDirectory, "scripts");
+            if (!scripts.mkdirs()) checkArgument(scripts.isDirectory());
+            tree().forEach(script -> unchecked(() -> Files.write(script.code, script.runCopy(runsDirectory),
+                Charsets.UTF_8)));
+        }
+
+        /** @return location of this script's copy in the run directory, see {@link #writeRunCopies} */
+        private File runCopy(File runsDirectory) {
+            return new File(runsDirectory, "scripts/" + location.getName());
+        }
+
+        /** @return location of this script's output log in the run directory */
+        public File outLog(File runsDirectory) {
+            return new File(runsDirectory, location.getName() + "-out.log");
+        }
+
+        /** Writes status with full logs, as {@link #status(File, boolean)}, streaming logs from disk */
+        public void writeStatus(File runsDirectory, JsonGenerator generator) throws IOException {
+            generator.writeStartObject();
+            for (Map.Entry<String, Object> entry : context.statuses.get(statusFile(runsDirectory)).entrySet())
+                generator.writeObjectField(entry.getKey(), entry.getValue());
+
+            File outLog = outLog(runsDirectory);
+            if (LogReader.exists(outLog)) {
+                generator.writeFieldName("log");
+                LogReader.writeJsonString(outLog, generator);
+            }
+
+            if (okScript.isPresent()) {
+                generator.writeFieldName("okScriptStatus");
+                okScript.get().writeStatus(runsDirectory, generator);
+            }
+            if (errorScript.isPresent()) {
+                generator.writeFieldName("errorScriptStatus");
+                errorScript.get().writeStatus(runsDirectory, generator);
+            }
+            if (!parallel.isEmpty()) {
+                generator.writeArrayFieldStart("parallelStatus");
+                for (WrittenScript script : parallel) script.writeStatus(runsDirectory, generator);
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        }
+
+        /** @return location of this script's status in the run directory */
+        public File statusFile(File runsDirectory) {
+            return new File(runsDirectory, location.getName() + "-status.json");
+        }
+
+        /** @param includeLog whether to include full logs, otherwise only "logSize" is included */
+        public Map<String, Object> status(File runsDirectory, boolean includeLog) {
             final Map<String, Object> status = new LinkedHashMap<>();
 
-            Optional.of(new File(runsDirectory, location.getName() + "-status.json"))
-                .filter(File::exists)
-                .map(f -> {
-                    try { return new ObjectMapper().readValue(f, Map.class); }
-                    catch (Exception ex) { return emptyMap(); }
-                })
-                .ifPresent(status::putAll);
+            status.putAll(context.statuses.get(statusFile(runsDirectory)));
 
-            Optional.of(new File(runsDirectory, location.getName() + "-out.log"))
-                .filter(File::exists)
-                .map(f -> uncheckedGet(() -> Files.toString(f, Charsets.UTF_8)))
+            Optional<File> outLog = Optional.of(outLog(runsDirectory)).filter(LogReader::exists);
+            if (includeLog) outLog.map(f -> uncheckedGet(() -> LogReader.readFully(f)))
                 .ifPresent(log -> status.put("log", log));
+            else outLog.ifPresent(f -> status.put("logSize", uncheckedGet(() -> LogReader.size(f))));
 
-            okScript.map(s -> s.status(runsDirectory))
+            okScript.map(s -> s.status(runsDirectory, includeLog))
                 .ifPresent(scriptStatus -> status.put("okScriptStatus", scriptStatus));
-            errorScript.map(s -> s.status(runsDirectory))
+            errorScript.map(s -> s.status(runsDirectory, includeLog))
                 .ifPresent(scriptStatus -> status.put("errorScriptStatus", scriptStatus));
+            if (!parallel.isEmpty()) status.put("parallelStatus", parallel.stream()
+                .map(s -> s.status(runsDirectory, includeLog))
+                .collect(toList()));
             return status;
         }
     }
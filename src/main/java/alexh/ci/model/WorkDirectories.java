@@ -0,0 +1,101 @@
+package alexh.ci.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Arrays.asList;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Gives each run its work directory, either the job's "work" directory itself or a copy of it as a template, so
+ * runs of a job don't share state & may run concurrently. Copies are made & removed in the background, so a run
+ * waiting for its copy doesn't take a script slot
+ */
+public class WorkDirectories {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkDirectories.class);
+
+    public enum Mode {
+        /** runs share the job's work directory, changes persist to later runs. A job's runs can't be concurrent */
+        SHARED,
+        /**
+         * copy-on-write clone where the filesystem supports reflinks (btrfs, xfs), otherwise a full copy, eg on
+         * ext4. Each run starts from the template & whatever its scripts write to work is discarded after the run
+         */
+        CLONE,
+        /**
+         * hard links to the template's files, fastest for large trees. Files replaced by a script are private
+         * to the run, but files modified in place are modified in the template too
+         */
+        HARDLINK
+    }
+
+    private final Mode mode;
+    private final Executor executor;
+
+    /** @param executor copies & removes run work directories */
+    public WorkDirectories(Mode mode, Executor executor) {
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    /** @return future of the run's new work directory, or the template itself right away when shared */
+    public CompletableFuture<File> create(File template, File runDirectory) {
+        return CompletableFuture.supplyAsync(() -> createNow(template, runDirectory),
+            mode == Mode.SHARED ? Runnable::run : executor);
+    }
+
+    private File createNow(File template, File runDirectory) {
+        if (!template.exists()) checkArgument(template.mkdirs());
+        if (mode == Mode.SHARED) return template;
+
+        File work = new File(runDirectory, "work");
+        checkArgument(work.mkdirs(), "Failed to create %s", work);
+        // native cp is much faster than walking large trees, fall back to copying where it's unavailable
+        List<String> flags = mode == Mode.HARDLINK ? asList("-al") : asList("-a", "--reflink=auto");
+        if (!copyWithCp(flags, template, work)) {
+            try { FileUtils.copyDirectory(template, work); }
+            catch (IOException ex) { throw new IllegalStateException("Failed to copy " + template, ex); }
+        }
+        return work;
+    }
+
+    private static boolean copyWithCp(List<String> flags, File template, File work) {
+        List<String> command = new ArrayList<>();
+        command.add("cp");
+        command.addAll(flags);
+        command.add(template.getAbsolutePath() + "/.");
+        command.add(work.getAbsolutePath());
+        try {
+            return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File("/dev/null"))
+                .start()
+                .waitFor() == 0;
+        }
+        catch (IOException ex) { return false; }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Removes the run's work directory in the background, unless shared */
+    public void release(File work) {
+        if (mode == Mode.SHARED) return;
+        executor.execute(() -> {
+            try { FileUtils.deleteDirectory(work); }
+            catch (IOException ex) { log.warn("Failed to remove " + work, ex); }
+        });
+    }
+}
@@ -1,52 +1,121 @@
 package alexh.ci.resource;
 
-import static alexh.weak.Converter.convert;
 import static com.google.common.base.Charsets.UTF_8;
-import static com.google.common.base.Preconditions.checkArgument;
-import static java.util.Collections.emptyMap;
-import static java.util.stream.Collectors.toList;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import alexh.Fluent;
-import alexh.ci.ScriptRunner;
+import alexh.ci.LogIndex;
+import alexh.ci.LogReader;
+import alexh.ci.LogSearch;
+import alexh.ci.OutputBroadcast;
 import alexh.ci.model.Job;
+import alexh.ci.model.JobCatalog;
+import alexh.ci.model.Run;
+import alexh.ci.model.RunQueue;
+import alexh.ci.model.WorkDirectories;
+import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.Files;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.time.Instant;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.*;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 
 @Path("jobs")
 @Produces(APPLICATION_JSON)
 public class JobResource {
 
-    private static final Logger log = LoggerFactory.getLogger(JobResource.class);
+    private static final int MAX_LOG_READ = 1024 * 1024;
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    private static final int MAX_LIST_PAGE = 1000;
+    private static final int MAX_BATCH = 1000;
+    private static final String SERVER_SENT_EVENTS = "text/event-stream";
 
-    private final Executor singleExecutor;
+    private final JobCatalog catalog;
+    private final RunQueue runQueue;
+    private final WorkDirectories.Mode workDirectories;
     private final ObjectMapper objectMapper;
 
-    public JobResource(Executor singleExecutor, ObjectMapper objectMapper) {
-        this.singleExecutor = singleExecutor;
+    /** @param workDirectories how runs get their work directories, jobs are validated against */
+    public JobResource(JobCatalog catalog, RunQueue runQueue, WorkDirectories.Mode workDirectories,
+                       ObjectMapper objectMapper) {
+        this.catalog = catalog;
+        this.runQueue = runQueue;
+        this.workDirectories = workDirectories;
         this.objectMapper = objectMapper;
     }
 
+    /** @return all jobs, or 304 Not Modified if the If-None-Match catalog version is current */
     @GET
-    public List<Job.WrittenJob> jobs() {
-        return IntStream.rangeClosed(1, latestJobNumber())
-            .mapToObj(id ->  new File("jobs/"+ id))
-            .filter(File::exists)
-            .map(Job.WrittenJob::new)
-            .collect(toList());
+    @Timed
+    public Response jobs(@Context Request request) {
+        return conditional(request, catalog.version(), catalog::all);
+    }
+
+    /**
+     * Lists jobs a page at a time as summary rows, scripts are only included by {@link #jobs} & {@link #getJob}.
+     * Responds 304 Not Modified if the If-None-Match version, of the catalog & the page's latest runs, is current
+     * @param after id of the last job of the previous page, 0 for the first page
+     * @param limit most jobs in the page
+     * @param fields comma separated fields of each row, see {@link Job#LISTING_FIELDS}
+     * @return page of rows in id order, with next to list after for the next page, absent on the last page
+     *   {
+     *     jobs: [
+     *       { id: 1, latestRun: { run: 3, started: "2015-06-12T09:09:52.688Z", ended: "...", exitCode: 0 } }
+     *     ],
+     *     next: 1
+     *   }
+     */
+    @GET
+    @Path("page")
+    @Timed
+    public Response page(@QueryParam("after") @DefaultValue("0") int after,
+                         @QueryParam("limit") @DefaultValue("100") int limit,
+                         @QueryParam("fields") @DefaultValue("id,latestRun") String fields,
+                         @Context Request request) {
+        List<String> rowFields = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(fields);
+        if (limit <= 0 || limit > MAX_LIST_PAGE || !Job.LISTING_FIELDS.containsAll(rowFields))
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Invalid limit/fields, limit must be 1-" + MAX_LIST_PAGE +
+                    " & fields of " + Job.LISTING_FIELDS))
+                .build());
+
+        // one more than the page shows whether there's a next page
+        List<Job.WrittenJob> jobs = catalog.page(after, limit + 1);
+        List<Job.WrittenJob> page = jobs.subList(0, Math.min(limit, jobs.size()));
+
+        Hasher version = Hashing.murmur3_128().newHasher()
+            .putUnencodedChars(catalog.version())
+            .putUnencodedChars(fields)
+            .putInt(after)
+            .putInt(limit);
+        if (rowFields.contains("latestRun"))
+            page.forEach(job -> version.putUnencodedChars(job.statusVersion(job.latestRun())));
+
+        return conditional(request, version.hash().toString(), () -> {
+            Map<String, Object> result = new Fluent.LinkedHashMap<String, Object>()
+                .append("jobs", page.stream().map(job -> job.listing(rowFields)).collect(Collectors.toList()));
+            if (jobs.size() > limit) result.put("next", page.get(page.size() - 1).id);
+            return result;
+        });
     }
 
     /**
@@ -76,30 +145,60 @@ public class JobResource {
             throw new WebApplicationException(Response.status(400)
                 .entity(ImmutableMap.of("message", "Missing payload"))
                 .build());
-        newJob.validateIn();
-
-        File newJobDir;
-        int newJobNumber;
-        synchronized (this) {
-            newJobNumber = latestJobNumber() + 1;
-            newJobDir = new File("jobs/" + newJobNumber);
-            checkArgument(newJobDir.mkdirs());
-        }
+        newJob.validateIn(workDirectories);
 
-        newJob.writeTo(newJobDir);
-
-        return new Fluent.HashMap<>().append("id", newJobNumber);
+        return new Fluent.HashMap<>().append("id", catalog.create(newJob).id);
     }
 
-    private int latestJobNumber() {
-        File jobs = new File("jobs");
-        if (!jobs.exists()) checkArgument(jobs.mkdir());
+    /**
+     * Creates jobs, validating them all before creating any
+     * @param newJobs job configurations, as {@link #newJob}
+     * @return result map, in the order of the jobs, with each job's id or why it failed to write
+     *   {
+     *     jobs: [
+     *       { id: 123 },
+     *       { message: "Failed to write job" }
+     *     ]
+     *   }
+     *   or 400 with each invalid job's index
+     *   {
+     *     message: "Invalid jobs",
+     *     errors: [
+     *       { index: 2, message: "Missing Job#okScript" }
+     *     ]
+     *   }
+     */
+    @POST
+    @Path("batch")
+    @Consumes(APPLICATION_JSON)
+    public Map newJobs(List<Job> newJobs) {
+        checkBatchSize(newJobs);
+        List<Map<String, Object>> errors = new ArrayList<>();
+        for (int index = 0; index < newJobs.size(); index++) {
+            try {
+                if (newJobs.get(index) == null)
+                    throw new WebApplicationException(Response.status(400)
+                        .entity(ImmutableMap.of("message", "Missing payload"))
+                        .build());
+                newJobs.get(index).validateIn(workDirectories);
+            }
+            catch (WebApplicationException ex) {
+                errors.add(new Fluent.LinkedHashMap<String, Object>()
+                    .append("index", index)
+                    .append("message", ((Map<?, ?>) ex.getResponse().getEntity()).get("message")));
+            }
+        }
+        if (!errors.isEmpty())
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Invalid jobs", "errors", errors))
+                .build());
 
-        return Stream.of(jobs.list())
-            .filter(name -> convert(name).intoIntegerWorks())
-            .mapToInt(Integer::valueOf)
-            .max()
-            .orElse(0);
+        List<Map<String, Object>> created = new ArrayList<>();
+        for (CompletableFuture<Job.WrittenJob> job : catalog.createAll(newJobs)) {
+            try { created.add(ImmutableMap.of("id", job.join().id)); }
+            catch (CompletionException ex) { created.add(ImmutableMap.of("message", "Failed to write job")); }
+        }
+        return new Fluent.HashMap<>().append("jobs", created);
     }
 
     @PUT
@@ -110,46 +209,109 @@ public class JobResource {
             throw new WebApplicationException(Response.status(400)
                 .entity(ImmutableMap.of("message", "Missing payload"))
                 .build());
-        job.validateIn();
+        job.validateIn(workDirectories);
 
-        job.writeTo(new File("jobs/"+ job.id));
+        catalog.update(job.id, job);
     }
 
     @GET
     @Path("{jobId}")
-    public Job.WrittenJob job(@PathParam("jobId") int id) {
-        File jobDir = new File("jobs/"+ id);
-        if (!jobDir.exists()) throw new NotFoundException();
-        return new Job.WrittenJob(jobDir);
+    @Timed
+    public Response getJob(@PathParam("jobId") int id, @Context Request request) {
+        Job.WrittenJob job = job(id);
+        return conditional(request, catalog.version(id), () -> job);
+    }
+
+    private Job.WrittenJob job(int id) {
+        return catalog.get(id).orElseThrow(NotFoundException::new);
     }
 
     @POST
     @Path("{jobId}/delete")
     public void deleteJob(@PathParam("jobId") int id) {
-        File jobDir = new File("jobs/"+ id);
-        if (!jobDir.exists()) throw new NotFoundException();
-        checkArgument(jobDir.renameTo(new File("jobs/" + id + "-deleted-" + Instant.now().toString().replace(":", ";"))));
+        job(id);
+        catalog.delete(id);
     }
 
-    private static final Fluent.ConcurrentHashMap<Integer, Boolean> runLock = new Fluent.ConcurrentHashMap<>();
-
-    /** @return result map { run: runId } */
+    /**
+     * Requests a run, started right away unless the job is running or debounced. Otherwise requests are
+     * coalesced into a single pending run
+     * @param priority queued runs with a higher priority are dispatched first
+     * @return result map { run: runId } if started, or { pending: true, coalesced: 3 }
+     */
     @POST
     @Path("{jobId}/run")
-    public Map runJob(@PathParam("jobId") int id) {
-        // todo jobs should have an executor each
+    public Map runJob(@PathParam("jobId") int id, @QueryParam("priority") @DefaultValue("0") int priority) {
+        return runQueue.request(job(id), priority);
+    }
 
-        if (runLock.containsKey(id))
+    /**
+     * Requests runs of jobs as {@link #runJob}, checking all the jobs exist before requesting any
+     * @param batch job ids & priority
+     *   {
+     *     jobs: [4, 5],
+     *     priority: 0
+     *   }
+     * @return result map, results in the order of the jobs
+     *   {
+     *     runs: [
+     *       { id: 4, run: 12 },
+     *       { id: 5, pending: true, coalesced: 2 }
+     *     ]
+     *   }
+     */
+    @POST
+    @Path("run-batch")
+    @Consumes(APPLICATION_JSON)
+    public Map runJobs(RunBatch batch) {
+        if (batch == null)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Missing payload"))
+                .build());
+        checkBatchSize(batch.jobs);
+
+        List<Job.WrittenJob> jobs = new ArrayList<>();
+        List<Integer> unknown = new ArrayList<>();
+        for (Integer id : batch.jobs) {
+            Optional<Job.WrittenJob> job = id == null ? Optional.empty() : catalog.get(id);
+            if (job.isPresent()) jobs.add(job.get());
+            else unknown.add(id);
+        }
+        if (!unknown.isEmpty())
             throw new WebApplicationException(Response.status(400)
-                .entity(ImmutableMap.of("message", "Already running"))
+                .entity(new Fluent.LinkedHashMap<>()
+                    .append("message", "Unknown jobs")
+                    .append("jobs", unknown))
                 .build());
 
-        runLock.append(id, true);
+        return new Fluent.HashMap<>().append("runs", runQueue.requestAll(jobs, batch.priority));
+    }
+
+    public static class RunBatch {
+        public List<Integer> jobs;
+        /** queued runs with a higher priority are dispatched first */
+        public int priority;
+    }
+
+    private static void checkBatchSize(List<?> batch) {
+        if (batch == null || batch.isEmpty() || batch.size() > MAX_BATCH)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Batch must have 1-" + MAX_BATCH + " items"))
+                .build());
+    }
 
-        job(id).run(singleExecutor)
-            .thenRun(() -> runLock.remove(id));
-        // todo remove hardcode /1
-        return new Fluent.HashMap<>().append("run", "1");
+    /**
+     * Cancels a run, killing its running scripts' process trees. Scripts yet to run are skipped, or for jobs
+     * with onCancel "errorScript" the cancelled scripts' error scripts run. 409 if the run isn't running
+     */
+    @POST
+    @Path("{jobId}/runs/{runId}/cancel")
+    public void cancelRun(@PathParam("jobId") int id, @PathParam("runId") int run) {
+        job(id);
+        Run active = Run.active(id, run).orElseThrow(() -> new WebApplicationException(Response.status(409)
+            .entity(ImmutableMap.of("message", "Run not running"))
+            .build()));
+        active.control.cancel();
     }
 
     /**
@@ -176,55 +338,186 @@ public class JobResource {
      */
     @GET
     @Path("{jobId}/status/{runId}")
-    public Map jobStatus(@PathParam("jobId") int id, @PathParam("runId") int run) {
-        return job(id).status(run);
+    @Timed
+    public Response jobStatus(@PathParam("jobId") int id,
+                              @PathParam("runId") int run,
+                              @QueryParam("log") @DefaultValue("true") boolean includeLog,
+                              @Context Request request) {
+        return status(job(id), run, includeLog, request);
     }
 
     @GET
     @Path("{jobId}/status/latest")
-    public Map jobStatus(@PathParam("jobId") int id) {
-        return job(id).status(1);
+    @Timed(name = "jobStatusLatest")
+    public Response jobStatus(@PathParam("jobId") int id,
+                              @QueryParam("log") @DefaultValue("true") boolean includeLog,
+                              @Context Request request) {
+        Job.WrittenJob job = job(id);
+        return status(job, job.latestRun(), includeLog, request);
     }
 
-    @POST
-    @Path("single")
-    public synchronized void saveAndRunSingleScript(String script) throws Exception {
-        File scriptHome = new File("jobs/single-job/scripts");
-        if (!scriptHome.exists())
-            checkArgument(scriptHome.mkdirs());
-
-        try (PrintWriter writer = new PrintWriter(new File(scriptHome, "script.sh"))) {
-            writer.write(script);
-        }
+    /**
+     * @return status map without logs, or status streamed with logs copied straight from disk. 304 Not Modified
+     *   if the If-None-Match version is current, checked from statuses in memory & log sizes only
+     */
+    private Response status(Job.WrittenJob job, int run, boolean includeLog, Request request) {
+        String version = catalog.version(job.id) + "-" + job.statusVersion(run) + (includeLog ? "-log" : "");
+        if (!includeLog) return conditional(request, version, () -> job.status(run, false));
 
-        File workHome = new File("jobs/single-job/work");
-        if (!workHome.exists()) checkArgument(workHome.mkdir());
+        return conditional(request, version, () -> (StreamingOutput) out -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+                job.writeStatus(run, generator);
+            }
+        });
+    }
+
+    /**
+     * @param request null outside of a request, as when benchmarking
+     * @return entity tagged with the version, or 304 Not Modified without the entity if the request's
+     *   If-None-Match has the version
+     */
+    private static Response conditional(Request request, String version, Supplier<Object> entity) {
+        EntityTag tag = new EntityTag(version, true);
+        Response.ResponseBuilder notModified = request == null ? null : request.evaluatePreconditions(tag);
+        if (notModified != null) return notModified.tag(tag).build();
+        return Response.ok(entity.get()).tag(tag).build();
+    }
+
+    /**
+     * Incremental read of a script's output, poll with from = previous result's next
+     * @param script script file name, defaults to the root script
+     * @param from byte offset to read from
+     * @param max maximum bytes to return
+     * @return result map
+     *   {
+     *     from: 0,
+     *     next: 1024,
+     *     size: 4096,
+     *     log: "..."
+     *   }
+     */
+    @GET
+    @Path("{jobId}/runs/{runId}/log")
+    @Timed
+    public Map runLog(@PathParam("jobId") int id,
+                      @PathParam("runId") int run,
+                      @QueryParam("script") @DefaultValue("script-o.sh") String script,
+                      @QueryParam("from") @DefaultValue("0") long from,
+                      @QueryParam("max") @DefaultValue("65536") int max) throws IOException {
+        if (from < 0 || max < 4 || max > MAX_LOG_READ)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Invalid from/max, max must be 4-" + MAX_LOG_READ))
+                .build());
 
-        new ScriptRunner(new File("jobs/single-job/scripts/script.sh").getAbsolutePath())
-            .useDirectory(workHome)
-            .executeWith(singleExecutor)
-            .outputTo(new File("jobs/single-job"))
-            .run()
-            .thenAccept(exit -> {
-                log.info("Ran single-job with exit code: " + exit);
-            });
+        File outLog = job(id).outLog(run, script).orElseThrow(NotFoundException::new);
+        return LogReader.read(outLog, from, max);
     }
 
+    /**
+     * Searches the output of the job's runs, earliest run first
+     * @param query tokens that must all be on a line, case insensitive, eg "FooTest failed". Tokens are runs of
+     *   2-64 letters, digits or underscores, queries with shorter or longer runs are refused as they can't match
+     * @param regex regular expression to find in a line, instead of a token query
+     * @param limit most matching lines to return
+     * @return matching lines, see {@link LogSearch#search}
+     */
     @GET
-    @Path("single/out")
-    public Map singleJobOutput() throws IOException {
-        File status = new File("jobs/single-job/script.sh-status.json");
-        if (!status.exists()) return emptyMap();
+    @Path("{jobId}/logs/search")
+    @Timed
+    public Map searchLogs(@PathParam("jobId") int id,
+                          @QueryParam("q") @DefaultValue("") String query,
+                          @QueryParam("regex") @DefaultValue("") String regex,
+                          @QueryParam("limit") @DefaultValue("100") int limit) throws InterruptedException {
+        if (query.isEmpty() == regex.isEmpty() || limit <= 0 || limit > MAX_SEARCH_RESULTS)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Expected one of q/regex & limit 1-" + MAX_SEARCH_RESULTS))
+                .build());
+        List<String> untokenized = LogIndex.untokenized(query);
+        if (!untokenized.isEmpty())
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Terms of q must be 2-64 letters, digits or underscores, use " +
+                    "regex to search for " + String.join(", ", untokenized)))
+                .build());
+        if (!query.isEmpty() && LogIndex.tokens(query).isEmpty())
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "No letters or digits to search for in q"))
+                .build());
 
-        return new Fluent.HashMap<>()
-            .appendAll(objectMapper.readValue(status, Map.class))
-            .append("log", Files.toString(new File("jobs/single-job/script.sh-out.log"), UTF_8));
+        LogSearch search;
+        try {
+            search = query.isEmpty() ? LogSearch.forPattern(Pattern.compile(regex), limit) :
+                LogSearch.forTokens(query, limit);
+        }
+        catch (PatternSyntaxException ex) {
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Invalid regex: " + ex.getDescription()))
+                .build());
+        }
+
+        Job.WrittenJob job = job(id);
+        return search.search(job.runIds().sorted()
+            .mapToObj(job::runDirectory)
+            .collect(Collectors.toList()));
     }
 
+    /**
+     * Server-sent event stream of a script's output, one "data" event per line. A running script's stream
+     * starts with its recent output then follows new lines, a finished script's log is streamed from disk.
+     * Ends with an "end" event, or a "dropped" event if the client falls too far behind
+     * @param script script file name, defaults to the root script
+     */
     @GET
-    @Path("single")
-    public Map singleScript() throws IOException {
-        return new Fluent.HashMap<>()
-            .append("script", Files.toString(new File("jobs/single-job/scripts/script.sh"), UTF_8));
+    @Path("{jobId}/runs/{runId}/stream")
+    @Produces(SERVER_SENT_EVENTS)
+    public StreamingOutput streamOutput(@PathParam("jobId") int id,
+                                        @PathParam("runId") int run,
+                                        @QueryParam("script") @DefaultValue("script-o.sh") String script) {
+        File outLog = job(id).outLog(run, script).orElseThrow(NotFoundException::new);
+        Optional<OutputBroadcast> broadcast = OutputBroadcast.live(outLog);
+        if (!broadcast.isPresent() && !LogReader.exists(outLog)) throw new NotFoundException();
+
+        return out -> {
+            Writer writer = new OutputStreamWriter(out, UTF_8);
+            if (broadcast.isPresent()) {
+                try (OutputBroadcast.Subscription subscription = broadcast.get().subscribe()) {
+                    while (!subscription.isFinished()) {
+                        Optional<String> lines = subscription.poll(15, TimeUnit.SECONDS);
+                        if (lines.isPresent()) writeDataEvents(writer, lines.get());
+                        else if (!subscription.isFinished()) writer.write(":\n\n"); // keep-alive comment
+                        writer.flush();
+                    }
+                    writeNamedEvent(writer, subscription.isDropped() ? "dropped" : "end");
+                }
+                catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+            }
+            else {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(LogReader.open(outLog), UTF_8))) {
+                    for (String line = reader.readLine(); line != null; line = reader.readLine())
+                        writeDataEvent(writer, line);
+                }
+                writeNamedEvent(writer, "end");
+            }
+            writer.flush();
+        };
+    }
+
+    private static void writeDataEvents(Writer writer, String lines) throws IOException {
+        int start = 0;
+        for (int end = lines.indexOf('\n'); end != -1; start = end + 1, end = lines.indexOf('\n', start))
+            writeDataEvent(writer, lines.substring(start, end));
+        if (start < lines.length()) writeDataEvent(writer, lines.substring(start));
+    }
+
+    /** writes an event with an empty data line, as clients only dispatch events with data */
+    private static void writeNamedEvent(Writer writer, String name) throws IOException {
+        writer.write("event: ");
+        writer.write(name);
+        writer.write("\ndata:\n\n");
+    }
+
+    private static void writeDataEvent(Writer writer, String line) throws IOException {
+        writer.write("data: ");
+        writer.write(line.replace("\r", ""));
+        writer.write("\n\n");
     }
 }
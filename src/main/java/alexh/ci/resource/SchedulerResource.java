@@ -0,0 +1,40 @@
+package alexh.ci.resource;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import alexh.ci.RunScheduler;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.util.Map;
+
+@Path("scheduler")
+@Produces(APPLICATION_JSON)
+public class SchedulerResource {
+
+    private final RunScheduler scheduler;
+
+    public SchedulerResource(RunScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return slot usage & queue stats
+     * for example:
+     * {
+        "maxConcurrentRuns": 16,
+        "running": 2,
+        "queued": 1,
+        "longestWaitMillis": 1520,
+        "dispatched": 48,
+        "averageWaitMillis": 12,
+        "jobs": {
+            "3": { "running": 1, "queued": 1, "limit": 1 },
+            "7": { "running": 1, "queued": 0, "limit": 16 }
+        }
+       }
+     */
+    @GET
+    public Map stats() {
+        return scheduler.stats();
+    }
+}
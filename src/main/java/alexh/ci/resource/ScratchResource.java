@@ -0,0 +1,50 @@
+package alexh.ci.resource;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import alexh.Fluent;
+import alexh.ci.model.ScratchRuns;
+import com.google.common.collect.ImmutableMap;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.Map;
+
+/** Ad-hoc script runs outside of any job, see {@link ScratchRuns} */
+@Path("scratch")
+@Produces(APPLICATION_JSON)
+public class ScratchResource {
+
+    private final ScratchRuns scratchRuns;
+
+    public ScratchResource(ScratchRuns scratchRuns) {
+        this.scratchRuns = scratchRuns;
+    }
+
+    /**
+     * Runs the script in a fresh scratch directory, responding 503 if too many scratch runs are already waiting
+     * @param script script code, starting with a #! line
+     * @return result map
+     *   {
+     *     id: "0f6c..."
+     *   }
+     */
+    @POST
+    public Map newRun(String script) throws IOException {
+        if (script == null || !script.startsWith("#!"))
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Script must start with #!"))
+                .build());
+
+        String id = scratchRuns.start(script).orElseThrow(() -> new WebApplicationException(Response.status(503)
+            .entity(ImmutableMap.of("message", "Too many scratch runs, try again later"))
+            .build()));
+        return new Fluent.HashMap<>().append("id", id);
+    }
+
+    /** @return scratch run's script, status & log, see {@link ScratchRuns#get} */
+    @GET
+    @Path("{id}")
+    public Map run(@PathParam("id") String id) throws IOException {
+        return scratchRuns.get(id).orElseThrow(NotFoundException::new);
+    }
+}
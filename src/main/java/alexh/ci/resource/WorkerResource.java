@@ -0,0 +1,110 @@
+package alexh.ci.resource;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import alexh.Fluent;
+import alexh.ci.model.RemoteRuns;
+import com.google.common.collect.ImmutableMap;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/** Coordinator endpoints for remote workers, available when runs are dispatched to workers */
+@Path("workers")
+@Produces(APPLICATION_JSON)
+public class WorkerResource {
+
+    private static final int MAX_WAIT_SECONDS = 60;
+
+    private final RemoteRuns remoteRuns;
+
+    public WorkerResource(RemoteRuns remoteRuns) {
+        this.remoteRuns = remoteRuns;
+    }
+
+    /** @return leased & queued runs, see {@link RemoteRuns#status()} */
+    @GET
+    public Map<String, Object> workers() {
+        return remoteRuns.status();
+    }
+
+    /**
+     * Waits for a queued run, responding 204 No Content if none was queued within the wait
+     * @param worker name of the polling worker, for logs & status
+     * @return lease of the run, kept by syncing at least once per lease time
+     *   {
+     *     lease: "e5c...",
+     *     leaseSeconds: 30,
+     *     jobId: 1,
+     *     run: 12,
+     *     job: { okScript: {...}, ... }
+     *   }
+     */
+    @POST
+    @Path("lease")
+    public Response lease(@QueryParam("worker") @DefaultValue("") String worker,
+                          @QueryParam("wait") @DefaultValue("30") int waitSeconds) throws InterruptedException {
+        if (worker.isEmpty() || waitSeconds < 0 || waitSeconds > MAX_WAIT_SECONDS)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Missing worker or invalid wait, 0-" + MAX_WAIT_SECONDS))
+                .build());
+
+        Optional<RemoteRuns.Lease> lease = remoteRuns.lease(worker, waitSeconds, TimeUnit.SECONDS);
+        if (!lease.isPresent()) return Response.noContent().build();
+        return Response.ok(new Fluent.LinkedHashMap<String, Object>()
+            .append("lease", lease.get().id)
+            .append("leaseSeconds", remoteRuns.leaseTime().toSeconds())
+            .append("jobId", lease.get().job().id)
+            .append("run", lease.get().run().id)
+            .append("job", lease.get().job()))
+            .build();
+    }
+
+    /**
+     * Appends output & records script statuses of a leased run, renewing the lease. Responds 410 Gone once the
+     * lease has expired, the worker should then abandon the run
+     * @param sync output since the last sync & changed statuses, by script name
+     *   {
+     *     logs: { "script-o.sh": "...\n" },
+     *     statuses: { "script-o.sh": { queued: "...", started: "..." } }
+     *   }
+     * @return whether the run has been cancelled
+     *   {
+     *     cancel: false
+     *   }
+     */
+    @POST
+    @Path("leases/{lease}/sync")
+    @Consumes(APPLICATION_JSON)
+    public Map<String, Object> sync(@PathParam("lease") String leaseId, Sync sync) throws IOException {
+        if (sync == null) sync = new Sync();
+        RemoteRuns.Lease lease = remoteRuns.sync(leaseId, sync.logs, sync.statuses)
+            .orElseThrow(WorkerResource::leaseGone);
+        return new Fluent.HashMap<String, Object>().append("cancel", lease.run().control.isCancelled());
+    }
+
+    public static class Sync {
+        public Map<String, String> logs = new HashMap<>();
+        public Map<String, Map<String, Object>> statuses = new HashMap<>();
+    }
+
+    /** Completes a leased run, responding 410 Gone if the lease had already expired */
+    @POST
+    @Path("leases/{lease}/complete")
+    public void complete(@PathParam("lease") String leaseId, @QueryParam("exitCode") Integer exitCode) {
+        if (exitCode == null)
+            throw new WebApplicationException(Response.status(400)
+                .entity(ImmutableMap.of("message", "Missing exitCode"))
+                .build());
+        if (!remoteRuns.complete(leaseId, exitCode)) throw leaseGone();
+    }
+
+    private static WebApplicationException leaseGone() {
+        return new WebApplicationException(Response.status(410)
+            .entity(ImmutableMap.of("message", "Lease expired"))
+            .build());
+    }
+}
@@ -0,0 +1,86 @@
+package alexh.ci.worker;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.Collections.emptyMap;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/** Calls a coordinator's worker endpoints, see {@link alexh.ci.resource.WorkerResource} */
+class CoordinatorClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private final String apiUrl;
+    private final ObjectMapper mapper;
+
+    /** @param apiUrl eg "http://localhost:8080/api" */
+    CoordinatorClient(String apiUrl, ObjectMapper mapper) {
+        this.apiUrl = apiUrl.replaceFirst("/$", "");
+        this.mapper = mapper;
+    }
+
+    /** @return lease of a queued run, empty if none was queued within the wait */
+    Optional<Map<?, ?>> lease(String worker, int waitSeconds) throws IOException {
+        HttpURLConnection connection = post("/workers/lease?worker=" + URLEncoder.encode(worker, "UTF-8") +
+            "&wait=" + waitSeconds, Optional.empty(), READ_TIMEOUT_MILLIS + (int) TimeUnit.SECONDS.toMillis(waitSeconds));
+        if (connection.getResponseCode() == 204) return Optional.empty();
+        return Optional.of(read(connection));
+    }
+
+    /** @return sync response, empty if the lease has expired */
+    Optional<Map<?, ?>> sync(String lease, Map<String, Object> sync) throws IOException {
+        HttpURLConnection connection = post("/workers/leases/" + lease + "/sync", Optional.of(sync),
+            READ_TIMEOUT_MILLIS);
+        if (connection.getResponseCode() == 410) return Optional.empty();
+        return Optional.of(read(connection));
+    }
+
+    /** @return false if the lease had expired */
+    boolean complete(String lease, int exitCode) throws IOException {
+        HttpURLConnection connection = post("/workers/leases/" + lease + "/complete?exitCode=" + exitCode,
+            Optional.empty(), READ_TIMEOUT_MILLIS);
+        if (connection.getResponseCode() == 410) return false;
+        read(connection);
+        return true;
+    }
+
+    private HttpURLConnection post(String path, Optional<Object> body, int readTimeoutMillis) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (body.isPresent()) {
+            try (OutputStream out = connection.getOutputStream()) {
+                mapper.writeValue(out, body.get());
+            }
+        }
+        else connection.setFixedLengthStreamingMode(0);
+        return connection;
+    }
+
+    /** @return response body, empty map if none */
+    private Map<?, ?> read(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if (status >= 300) {
+            InputStream error = connection.getErrorStream();
+            String message = error == null ? "" : new String(ByteStreams.toByteArray(error), UTF_8);
+            throw new IOException("POST " + connection.getURL() + " responded " + status + " " + message);
+        }
+        try (InputStream in = connection.getInputStream()) {
+            byte[] body = ByteStreams.toByteArray(in);
+            return body.length == 0 ? emptyMap() : mapper.readValue(body, Map.class);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package alexh.ci.worker;
+
+import static com.google.common.base.Charsets.UTF_8;
+import alexh.Fluent;
+import alexh.ci.LogReader;
+import alexh.ci.RunContext;
+import alexh.ci.RunScheduler;
+import alexh.ci.RunStatuses;
+import alexh.ci.model.Job;
+import alexh.ci.model.Run;
+import alexh.ci.model.Script;
+import alexh.ci.model.WorkDirectories;
+import alexh.weak.Dynamic;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs leased from a coordinator, see {@link alexh.ci.model.RemoteRuns}. Each slot long-polls the coordinator for
+ * a run & runs it locally, syncing new output & changed script statuses back about every second, which keeps the
+ * lease. A run whose lease is lost is cancelled, as the coordinator will have given it to another worker
+ */
+public class Worker {
+
+    private static final Logger log = LoggerFactory.getLogger(Worker.class);
+
+    private static final int LEASE_WAIT_SECONDS = 30;
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 5000;
+    /** time to wait on stopping for cancelled runs to end & their slots to clean up */
+    private static final long STOP_WAIT_MILLIS = 10_000;
+    /** most output of a script sent per sync */
+    private static final int MAX_SYNC_LOG = 1024 * 1024;
+
+    private final String name;
+    private final File directory;
+    private final int slots;
+    private final CoordinatorClient coordinator;
+    private final ObjectMapper mapper;
+    private final RunScheduler scheduler;
+    private final WorkDirectories workDirectories;
+    private final RunContext context;
+    private final Set<Run> running = ConcurrentHashMap.newKeySet();
+    private final List<Thread> slotThreads = new CopyOnWriteArrayList<>();
+    private volatile boolean stopped;
+
+    /**
+     * @param directory jobs & work directories of leased runs, one per slot as each slot rewrites its job's scripts
+     * @param slots number of runs to lease at once
+     * @param context statuses of leased runs while they run locally
+     */
+    public Worker(String name, String coordinatorUrl, File directory, int slots, RunScheduler scheduler,
+                  WorkDirectories workDirectories, RunContext context, ObjectMapper mapper) {
+        this.name = name;
+        this.directory = directory;
+        this.slots = slots;
+        this.coordinator = new CoordinatorClient(coordinatorUrl, mapper);
+        this.mapper = mapper;
+        this.scheduler = scheduler;
+        this.workDirectories = workDirectories;
+        this.context = context;
+    }
+
+    /** Leases & runs until stopped */
+    public void run() throws InterruptedException {
+        log.info("Worker {} running {} slot(s)", name, slots);
+        for (int slot = 1; slot <= slots; slot++) {
+            File slotDirectory = new File(directory, "slot-" + slot);
+            Thread thread = new Thread(() -> leaseUntilStopped(slotDirectory), name + "-slot-" + slot);
+            thread.start();
+            slotThreads.add(thread);
+        }
+        for (Thread thread : slotThreads) thread.join();
+    }
+
+    /**
+     * Stops leasing & cancels running runs, waiting a while for their scripts to be killed & their slots to clean up,
+     * the coordinator requeues them once their leases expire
+     */
+    public void stop() {
+        stopped = true;
+        running.forEach(run -> run.control.cancel());
+        long deadline = System.currentTimeMillis() + STOP_WAIT_MILLIS;
+        try {
+            CompletableFuture<?>[] exits = running.stream().map(run -> run.exit).toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(exits).get(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            for (Thread thread : slotThreads) thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        catch (ExecutionException | TimeoutException ex) { log.warn("Runs didn't all end on stopping", ex); }
+        catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+    }
+
+    private void leaseUntilStopped(File slotDirectory) {
+        while (!stopped) {
+            try {
+                Optional<Map<?, ?>> lease = coordinator.lease(name, LEASE_WAIT_SECONDS);
+                if (lease.isPresent() && !stopped) runLeased(Dynamic.from(lease.get()), slotDirectory);
+            }
+            catch (IOException | RuntimeException ex) {
+                log.warn("Failed to lease from coordinator, retrying", ex);
+                sleep(RETRY_MILLIS);
+            }
+        }
+    }
+
+    private void runLeased(Dynamic lease, File slotDirectory) throws IOException {
+        String leaseId = lease.get("lease").asString();
+        int jobId = lease.get("jobId").convert().intoInteger();
+        long leaseMillis = TimeUnit.SECONDS.toMillis(lease.get("leaseSeconds").convert().intoLong());
+        log.info("Running job {} run {}", jobId, lease.get("run").asObject());
+
+        File jobDirectory = new File(slotDirectory, String.valueOf(jobId));
+        Job.WrittenJob job = mapper.convertValue(lease.get("job").asObject(), Job.class)
+            .writeTo(jobDirectory, context);
+        Run run = job.run(scheduler.executor(String.valueOf(jobId)), workDirectories);
+        running.add(run);
+        File runDirectory = job.runDirectory(run.id);
+        try {
+            RunSync sync = new RunSync(job.okScript, runDirectory, context.statuses);
+            long lastSynced = System.currentTimeMillis();
+            int emptySyncs = 0;
+            while (true) {
+                boolean exited = run.exit.isDone();
+                Map<String, Object> batch = sync.next();
+                boolean synced = false;
+                try {
+                    Optional<Map<?, ?>> response = coordinator.sync(leaseId, batch);
+                    if (!response.isPresent()) {
+                        log.warn("Lease of job {} run {} expired, cancelling", jobId, lease.get("run").asObject());
+                        run.control.cancel();
+                        return;
+                    }
+                    sync.acknowledge();
+                    synced = true;
+                    lastSynced = System.currentTimeMillis();
+                    if (Boolean.TRUE.equals(response.get().get("cancel"))) run.control.cancel();
+                }
+                catch (IOException ex) {
+                    log.warn("Failed to sync job " + jobId + " run " + lease.get("run").asObject(), ex);
+                    if (System.currentTimeMillis() - lastSynced > leaseMillis) {
+                        // the coordinator will have expired the lease by now
+                        run.control.cancel();
+                        return;
+                    }
+                }
+                if (exited && synced && sync.isCaughtUp()) break;
+                if (exited && synced && sync.wasEmpty()) {
+                    // nothing left to send yet not caught up, complete anyway rather than sync for ever
+                    if (++emptySyncs * SYNC_INTERVAL_MILLIS > leaseMillis) {
+                        log.warn("Job {} run {} output didn't catch up, completing", jobId, lease.get("run").asObject());
+                        break;
+                    }
+                    sleep(SYNC_INTERVAL_MILLIS);
+                }
+                else if (!synced) sleep(SYNC_INTERVAL_MILLIS);
+                else if (!exited) waitForExit(run);
+                // otherwise sync the rest of an exited run's output right away
+            }
+            complete(leaseId, run.exit.handle((exit, ex) -> {
+                if (ex == null) return exit;
+                log.error("Job " + jobId + " run " + lease.get("run").asObject() + " failed", ex);
+                return 1;
+            }).join(), leaseMillis);
+        }
+        finally {
+            // the coordinator has the run's output, a lost run's output is of no use. A lost run is cancelled, so
+            // wait for it to end before removing the job, which the slot's next run may write again
+            try { run.exit.get(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS); }
+            catch (ExecutionException | TimeoutException ex) { log.warn("Job {} run didn't end", jobId); }
+            catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+            running.remove(run);
+            job.okScript.tree().forEach(script -> context.statuses.forget(script.statusFile(runDirectory)));
+            FileUtils.deleteQuietly(jobDirectory);
+        }
+    }
+
+    private void complete(String leaseId, int exitCode, long leaseMillis) {
+        long started = System.currentTimeMillis();
+        while (System.currentTimeMillis() - started < leaseMillis) {
+            try {
+                if (!coordinator.complete(leaseId, exitCode)) log.warn("Lease {} expired before completing", leaseId);
+                return;
+            }
+            catch (IOException ex) {
+                log.warn("Failed to complete lease " + leaseId + ", retrying", ex);
+                sleep(RETRY_MILLIS);
+            }
+        }
+    }
+
+    private static void waitForExit(Run run) {
+        try { run.exit.get(SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS); }
+        catch (TimeoutException | ExecutionException ex) { /* sync, then wait again */ }
+        catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+    }
+
+    private static void sleep(long millis) {
+        try { Thread.sleep(millis); }
+        catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+    }
+
+    /** Tracks what of a local run's output & statuses the coordinator has */
+    private static class RunSync {
+        private final Script.WrittenScript rootScript;
+        private final File runDirectory;
+        private final RunStatuses runStatuses;
+        private final Map<String, Long> offsets = new HashMap<>();
+        private final Map<String, Map<String, Object>> sent = new HashMap<>();
+        private final Map<String, Long> nextOffsets = new HashMap<>();
+        private final Map<String, Map<String, Object>> nextSent = new HashMap<>();
+        private boolean caughtUp;
+        private boolean empty;
+
+        RunSync(Script.WrittenScript rootScript, File runDirectory, RunStatuses runStatuses) {
+            this.rootScript = rootScript;
+            this.runDirectory = runDirectory;
+            this.runStatuses = runStatuses;
+        }
+
+        /**
+         * @return output since the last acknowledged sync & changed statuses, by script name. Output is sent in
+         *   whole lines while its script runs, a script's final status only once its output has all been sent
+         */
+        Map<String, Object> next() throws IOException {
+            Map<String, String> logs = new LinkedHashMap<>();
+            Map<String, Object> statuses = new LinkedHashMap<>();
+            nextOffsets.clear();
+            nextSent.clear();
+            caughtUp = true;
+
+            for (Script.WrittenScript script : (Iterable<Script.WrittenScript>) rootScript.tree()::iterator) {
+                String scriptName = script.location.getName();
+                Map<String, Object> status = runStatuses.get(script.statusFile(runDirectory));
+                boolean ended = status.containsKey("ended") || status.containsKey("cancelled");
+
+                long from = offsets.getOrDefault(scriptName, 0L);
+                Dynamic read = Dynamic.from(LogReader.read(script.outLog(runDirectory), from, MAX_SYNC_LOG));
+                String output = read.get("log").asString();
+                long size = read.get("size").convert().intoLong();
+                long next = read.get("next").convert().intoLong();
+                if (!ended || next < size) {
+                    // hold back a partial line, unless a single line fills the sync
+                    int lineEnd = output.lastIndexOf('\n') + 1;
+                    if (lineEnd > 0 || next - from < MAX_SYNC_LOG) {
+                        output = output.substring(0, lineEnd);
+                        next = from + output.getBytes(UTF_8).length;
+                    }
+                }
+                if (!output.isEmpty()) {
+                    logs.put(scriptName, output);
+                    nextOffsets.put(scriptName, next);
+                }
+
+                boolean outputSent = next >= size;
+                if (!status.isEmpty() && !status.equals(sent.get(scriptName)) && (!ended || outputSent)) {
+                    statuses.put(scriptName, status);
+                    nextSent.put(scriptName, status);
+                }
+                caughtUp &= outputSent && status.equals(nextSent.getOrDefault(scriptName,
+                    sent.getOrDefault(scriptName, Collections.emptyMap())));
+            }
+            empty = logs.isEmpty() && statuses.isEmpty();
+            return new Fluent.LinkedHashMap<String, Object>()
+                .append("logs", logs)
+                .append("statuses", statuses);
+        }
+
+        /** Records the last batch as received */
+        void acknowledge() {
+            offsets.putAll(nextOffsets);
+            sent.putAll(nextSent);
+        }
+
+        /** @return whether the last batch, once acknowledged, has all output & statuses */
+        boolean isCaughtUp() {
+            return caughtUp;
+        }
+
+        /** @return whether the last batch had no output or statuses */
+        boolean wasEmpty() {
+            return empty;
+        }
+    }
+}
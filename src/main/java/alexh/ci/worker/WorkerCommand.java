@@ -0,0 +1,82 @@
+package alexh.ci.worker;
+
+import alexh.ci.ProcessKiller;
+import alexh.ci.ProcessSampler;
+import alexh.ci.RunContext;
+import alexh.ci.RunMetrics;
+import alexh.ci.RunScheduler;
+import alexh.ci.RunStatuses;
+import alexh.ci.model.WorkDirectories;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.cli.Command;
+import io.dropwizard.setup.Bootstrap;
+import io.dropwizard.util.Duration;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the jar as a worker of a coordinating api, eg
+ *   java -jar script-ci-api.jar worker --coordinator http://ci:8080/api --slots 2
+ */
+public class WorkerCommand extends Command {
+
+    public WorkerCommand() {
+        super("worker", "Runs jobs leased from a coordinating api");
+    }
+
+    @Override
+    public void configure(Subparser subparser) {
+        subparser.addArgument("--coordinator")
+            .required(true)
+            .help("api url of the coordinator, eg http://localhost:8080/api");
+        subparser.addArgument("--name")
+            .setDefault(ManagementFactory.getRuntimeMXBean().getName())
+            .help("worker name shown by the coordinator, defaults to pid@host");
+        subparser.addArgument("--directory")
+            .setDefault("worker")
+            .help("directory for leased jobs' scripts, work & runs");
+        subparser.addArgument("--slots")
+            .type(Integer.class)
+            .setDefault(1)
+            .help("number of runs to lease at once");
+        subparser.addArgument("--threads")
+            .type(Integer.class)
+            .setDefault(Runtime.getRuntime().availableProcessors())
+            .help("number of scripts that may run at once across leased runs");
+    }
+
+    @Override
+    public void run(Bootstrap<?> bootstrap, Namespace namespace) throws Exception {
+        int threads = namespace.getInt("threads");
+        ExecutorService scripts = Executors.newFixedThreadPool(threads,
+            new ThreadFactoryBuilder().setNameFormat("script-run-%d").setDaemon(true).build());
+        ExecutorService workFiles = Executors.newFixedThreadPool(threads,
+            new ThreadFactoryBuilder().setNameFormat("work-directories-%d").setDaemon(true).build());
+        // statuses of leased runs only need to last until synced, so aren't written on stop
+        RunStatuses statuses = new RunStatuses(Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("run-status-writer").setDaemon(true).build()));
+        ProcessSampler sampler = new ProcessSampler(Duration.seconds(1), Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("process-sampler").setDaemon(true).build()));
+        sampler.start();
+        // the worker's stop waits for scripts it cancels to be killed, so these needn't outlive it
+        ProcessKiller killer = new ProcessKiller(Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("run-timeouts").setDaemon(true).build()),
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("run-kill-%d").setDaemon(true).build()));
+
+        Worker worker = new Worker(namespace.getString("name"), namespace.getString("coordinator"),
+            new File(namespace.getString("directory")), namespace.getInt("slots"),
+            new RunScheduler(scripts, threads, 0, new HashMap<>()),
+            new WorkDirectories(WorkDirectories.Mode.CLONE, workFiles),
+            new RunContext(statuses, new RunMetrics(new MetricRegistry()), sampler, killer, Optional.empty()),
+            bootstrap.getObjectMapper());
+        Runtime.getRuntime().addShutdownHook(new Thread(worker::stop, "worker-stop"));
+        worker.run();
+    }
+}
@@ -0,0 +1,68 @@
+package alexh.ci;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import com.google.common.base.Strings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class LogIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tokensAreLowercasedWordRuns() {
+        assertEquals(asList("footest", "failed", "in", "12ms", "a_b"),
+            new ArrayList<>(LogIndex.tokens("FooTest failed in 12ms: a_b, FAILED")));
+    }
+
+    @Test
+    public void tokensSkipRunsTooShortOrLong() {
+        String overlong = Strings.repeat("a", 65);
+        assertEquals(asList("error", Strings.repeat("b", 64)),
+            new ArrayList<>(LogIndex.tokens("error x " + overlong + " " + Strings.repeat("b", 64))));
+        assertEquals(asList("x", overlong), LogIndex.untokenized("error x " + overlong));
+        assertEquals(emptyList(), LogIndex.untokenized("error 42"));
+    }
+
+    @Test
+    public void indexRulesOutLogsMissingAToken() throws IOException {
+        File log = folder.newFile("script.sh-out.log");
+        LogIndex.Builder index = new LogIndex.Builder();
+        index.add("compiling foo\nFooTest pass");
+        index.add("ed\n");
+        index.write(log);
+
+        assertTrue(LogIndex.mayContainAll(log, asList("footest", "passed")));
+        assertTrue(LogIndex.mayContainAll(log, asList("compiling")));
+        assertFalse(LogIndex.mayContainAll(log, asList("footest", "failed")));
+        assertFalse(LogIndex.mayContainAll(log, asList("pass")));
+    }
+
+    @Test
+    public void logsWithoutIndexMayContainAnything() throws IOException {
+        File log = folder.newFile("script.sh-out.log");
+
+        assertTrue(LogIndex.mayContainAll(log, asList("anything")));
+    }
+
+    @Test
+    public void overflowedIndexMayContainAnything() throws IOException {
+        File log = folder.newFile("script.sh-out.log");
+        LogIndex.Builder index = new LogIndex.Builder();
+        StringBuilder hashes = new StringBuilder();
+        for (int hash = 0; hash < 200_001; hash++) hashes.append(Integer.toHexString(hash * 31)).append("x\n");
+        index.add(hashes.toString());
+        index.write(log);
+
+        assertTrue(LogIndex.mayContainAll(log, asList("anything")));
+    }
+}
@@ -0,0 +1,114 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import com.google.common.io.Files;
+import com.google.common.primitives.Bytes;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+public class LogReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File log(byte[] contents) throws IOException {
+        File log = folder.newFile("script.sh-out.log");
+        Files.write(contents, log);
+        return log;
+    }
+
+    @Test
+    public void readsFromOffset() throws IOException {
+        File log = log("hello world\n".getBytes(UTF_8));
+
+        Map<String, Object> read = LogReader.read(log, 6, 5);
+
+        assertEquals(6L, read.get("from"));
+        assertEquals(11L, read.get("next"));
+        assertEquals(12L, read.get("size"));
+        assertEquals("world", read.get("log"));
+    }
+
+    @Test
+    public void readsNothingPastEnd() throws IOException {
+        File log = log("hello\n".getBytes(UTF_8));
+
+        Map<String, Object> read = LogReader.read(log, 6, 1024);
+
+        assertEquals(6L, read.get("next"));
+        assertEquals("", read.get("log"));
+    }
+
+    @Test
+    public void holdsBackPartialCharacterWithinLog() throws IOException {
+        // e acute is 2 bytes, the read ends after its first
+        File log = log("abc\u00e9\n".getBytes(UTF_8));
+
+        Map<String, Object> read = LogReader.read(log, 0, 4);
+
+        assertEquals(3L, read.get("next"));
+        assertEquals("abc", read.get("log"));
+        assertEquals("\u00e9\n", LogReader.read(log, 3, 1024).get("log"));
+    }
+
+    @Test
+    public void holdsBackPartialCharacterAtEndOfLiveLog() throws IOException {
+        byte[] euro = "\u20ac".getBytes(UTF_8);
+        File log = log(Bytes.concat("ab".getBytes(UTF_8), new byte[]{ euro[0], euro[1] }));
+        OutputBroadcast broadcast = OutputBroadcast.open(log);
+        try {
+            Map<String, Object> read = LogReader.read(log, 0, 1024);
+
+            assertEquals(2L, read.get("next"));
+            assertEquals("ab", read.get("log"));
+        }
+        finally { broadcast.close(); }
+    }
+
+    @Test
+    public void reachesEndOfEndedLogWithIncompleteCharacter() throws IOException {
+        byte[] euro = "\u20ac".getBytes(UTF_8);
+        File log = log(Bytes.concat("ab".getBytes(UTF_8), new byte[]{ euro[0], euro[1] }));
+
+        Map<String, Object> read = LogReader.read(log, 0, 1024);
+
+        assertEquals(4L, read.get("next"));
+        assertEquals(read.get("size"), read.get("next"));
+        assertEquals("ab\ufffd", read.get("log"));
+    }
+
+    @Test
+    public void advancesPastBytesThatNeverStartCharacter() throws IOException {
+        File log = log(new byte[]{ 'a', 'b', 'c', (byte) 0xff, 'd' });
+        OutputBroadcast broadcast = OutputBroadcast.open(log);
+        try {
+            Map<String, Object> read = LogReader.read(log, 0, 4);
+
+            assertEquals(4L, read.get("next"));
+            assertEquals("abc\ufffd", read.get("log"));
+        }
+        finally { broadcast.close(); }
+    }
+
+    @Test
+    public void readsCompressedLog() throws IOException {
+        File log = log("first\nsecond\n".getBytes(UTF_8));
+        LogReader.compress(log);
+
+        Map<String, Object> read = LogReader.read(log, 6, 1024);
+
+        assertEquals(13L, read.get("next"));
+        assertEquals(13L, read.get("size"));
+        assertEquals("second\n", read.get("log"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxShorterThanCharacter() throws IOException {
+        LogReader.read(log(new byte[0]), 0, 3);
+    }
+}
@@ -0,0 +1,125 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class OutputPumpTest {
+
+    /** @return lines "000000000\n" to the count, 10 bytes each */
+    private static String lines(int from, int to) {
+        StringBuilder lines = new StringBuilder();
+        for (int line = from; line < to; line++) lines.append(String.format("%09d\n", line));
+        return lines.toString();
+    }
+
+    private static OutputLimit limit(int headKb, int tailKb, int linesPerSecond) {
+        OutputLimit limit = new OutputLimit();
+        limit.headKb = headKb;
+        limit.tailKb = tailKb;
+        limit.linesPerSecond = linesPerSecond;
+        return limit;
+    }
+
+    @Test
+    public void copiesAllOutputAndPublishesLines() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> published = new ArrayList<>();
+        OutputPump pump = new OutputPump(out, Optional.of(published::add));
+
+        long read = pump.pump(new ByteArrayInputStream("one\ntwo\nthree".getBytes(UTF_8)));
+
+        assertEquals(13, read);
+        assertEquals("one\ntwo\nthree", out.toString("UTF-8"));
+        assertEquals("one\ntwo\nthree", String.join("", published));
+    }
+
+    @Test
+    public void keepsOutputWithinLimitsWhole() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputPump pump = new OutputPump(out, Optional.empty(), limit(1, 64, 0), Optional.empty());
+
+        pump.pump(new ByteArrayInputStream(lines(0, 500).getBytes(UTF_8)));
+
+        assertEquals(lines(0, 500), out.toString("UTF-8"));
+        assertEquals(0, pump.elidedBytes());
+    }
+
+    @Test
+    public void elidesBetweenHeadAndTailAtLineEnds() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputPump pump = new OutputPump(out, Optional.empty(), limit(1, 1, 0), Optional.empty());
+
+        pump.pump(new ByteArrayInputStream(lines(0, 1000).getBytes(UTF_8)));
+
+        assertEquals(lines(0, 102) + "[... 7960 bytes elided, kept first 1020 & last 1020 bytes ...]\n" +
+            lines(898, 1000), out.toString("UTF-8"));
+        assertEquals(7960, pump.elidedBytes());
+    }
+
+    @Test
+    public void elidesOutputReadInSmallChunks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputPump pump = new OutputPump(out, Optional.empty(), limit(1, 1, 0), Optional.empty());
+        InputStream in = new ByteArrayInputStream(lines(0, 1000).getBytes(UTF_8)) {
+            @Override
+            public synchronized int read(byte[] bytes, int offset, int length) {
+                return super.read(bytes, offset, Math.min(length, 70));
+            }
+
+            @Override
+            public synchronized int available() {
+                return 0;
+            }
+        };
+
+        pump.pump(in);
+
+        assertEquals(lines(0, 102) + "[... 7960 bytes elided, kept first 1020 & last 1020 bytes ...]\n" +
+            lines(898, 1000), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void keepsOnlyHeadWithoutTail() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputPump pump = new OutputPump(out, Optional.empty(), limit(1, 0, 0), Optional.empty());
+
+        pump.pump(new ByteArrayInputStream(lines(0, 1000).getBytes(UTF_8)));
+
+        assertEquals(lines(0, 102) + "[... 8980 bytes elided, kept first 1020 & last 0 bytes ...]\n",
+            out.toString("UTF-8"));
+        assertEquals(8980, pump.elidedBytes());
+    }
+
+    @Test
+    public void keepsOnlyTailWithoutHead() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputPump pump = new OutputPump(out, Optional.empty(), limit(0, 1, 0), Optional.empty());
+
+        pump.pump(new ByteArrayInputStream(lines(0, 1000).getBytes(UTF_8)));
+
+        assertEquals("[... 8980 bytes elided, kept first 0 & last 1020 bytes ...]\n" + lines(898, 1000),
+            out.toString("UTF-8"));
+    }
+
+    @Test
+    public void dropsLinesOverRate() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> published = new ArrayList<>();
+        OutputPump pump = new OutputPump(out, Optional.of(published::add), limit(0, 0, 2), Optional.empty());
+
+        pump.pump(new ByteArrayInputStream("a\nb\nc\nd\ne\n".getBytes(UTF_8)));
+
+        String expected = "a\nb\n[... 3 lines dropped, over 2 lines/s ...]\n";
+        assertEquals(expected, out.toString("UTF-8"));
+        assertEquals(expected, String.join("", published));
+        assertEquals(3, pump.droppedLines());
+    }
+}
@@ -0,0 +1,82 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.util.List;
+import java.util.Optional;
+
+public class ResultCacheTest {
+
+    private static final String CODE = "#!/bin/sh\necho hi";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ResultCache cache;
+    private File work;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new ResultCache(folder.newFolder("cache"), 1024 * 1024);
+        work = folder.newFolder("work");
+        write("src/main.c", "int main");
+        write("build/out.o", "binary");
+    }
+
+    private void write(String path, String content) throws Exception {
+        File file = new File(work, path);
+        if (!file.getParentFile().exists()) assertTrue(file.getParentFile().mkdirs());
+        Files.write(content, file, UTF_8);
+    }
+
+    private String key(List<String> inputs) {
+        return cache.key(new File(work, "script.sh"), CODE, work, inputs, folder.getRoot()).get();
+    }
+
+    @Test
+    public void keyChangesWithMatchingInputs() throws Exception {
+        String key = key(asList("src/**"));
+
+        write("build/out.o", "rebuilt");
+        assertEquals(key, key(asList("src/**")));
+
+        write("src/main.c", "int main()");
+        assertNotEquals(key, key(asList("src/**")));
+    }
+
+    @Test
+    public void keyIgnoresPatternsOutsideWorkDirectory() throws Exception {
+        write("../outside/file", "x");
+        assertEquals(key(asList("src/**")), key(asList("src/**", "../outside/*")));
+    }
+
+    @Test
+    public void globBaseIsLeadingLiteralSegments() {
+        assertEquals("src/main", ResultCache.globBase("src/main/**.java"));
+        assertEquals("", ResultCache.globBase("**/*.c"));
+        assertEquals("", ResultCache.globBase("{src,lib}/**"));
+        assertEquals("pom.xml", ResultCache.globBase("pom.xml"));
+    }
+
+    @Test
+    public void storedResultReplays() throws Exception {
+        File outLog = new File(work, "out.log");
+        Files.write("hi\n", outLog, UTF_8);
+        String key = key(asList("src/**"));
+        cache.store(key, 0, outLog);
+
+        File replayed = new File(work, "replayed.log");
+        assertEquals(Optional.of(0), cache.replay(key, replayed));
+        assertEquals("hi\n", Files.toString(replayed, UTF_8));
+        assertEquals(0, new File(folder.getRoot(), "cache").listFiles((dir, name) -> name.endsWith(".tmp")).length);
+    }
+}
@@ -0,0 +1,153 @@
+package alexh.ci;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import io.dropwizard.util.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class RunJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private File journal;
+    private File run;
+
+    @Before
+    public void setUp() throws IOException {
+        journal = new File(folder.getRoot(), "run-journal");
+        run = folder.newFolder("run");
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private RunStatuses statuses() {
+        return new RunStatuses(writer, journal, Duration.hours(1));
+    }
+
+    private void journal(String... lines) throws IOException {
+        Files.write(String.join("\n", (CharSequence[]) lines) + "\n", journal, UTF_8);
+    }
+
+    private String entry(File statusFile, String status) {
+        return "{\"file\":\"" + statusFile.getAbsolutePath() + "\",\"status\":" + status + "}";
+    }
+
+    /** @return status as written to its file */
+    private static Map<String, Object> written(File statusFile) {
+        return new RunStatuses(Executors.newSingleThreadScheduledExecutor()).get(statusFile);
+    }
+
+    @Test
+    public void recoversLatestStatus() throws Exception {
+        File status = new File(run, "script.sh-status.json");
+        journal(entry(status, "{\"started\":\"a\"}"),
+            entry(status, "{\"started\":\"a\",\"ended\":\"b\",\"exitCode\":0}"));
+
+        statuses().start();
+
+        assertEquals(ImmutableMap.of("started", "a", "ended", "b", "exitCode", 0), written(status));
+    }
+
+    @Test
+    public void abortsStatusesNeverEnded() throws Exception {
+        File status = new File(run, "script.sh-status.json");
+        journal(entry(status, "{\"started\":\"a\"}"));
+
+        statuses().start();
+
+        Map<String, Object> recovered = written(status);
+        assertEquals(true, recovered.get("aborted"));
+        assertTrue(recovered.containsKey("ended"));
+    }
+
+    @Test
+    public void skipsUnreadableEntries() throws Exception {
+        File first = new File(run, "first.sh-status.json");
+        File second = new File(run, "second.sh-status.json");
+        journal(entry(first, "{\"ended\":\"b\"}"),
+            "{\"file\":\"" + second.getAbsolutePath() + "\",\"sta",
+            "{}",
+            entry(second, "{\"ended\":\"c\"}"));
+
+        statuses().start();
+
+        assertEquals(ImmutableMap.of("ended", "b"), written(first));
+        assertEquals(ImmutableMap.of("ended", "c"), written(second));
+    }
+
+    @Test
+    public void skipsDroppedStatusesAndRemovedRuns() throws Exception {
+        File dropped = new File(run, "script.sh-status.json");
+        File removed = new File(folder.getRoot(), "removed/script.sh-status.json");
+        journal(entry(dropped, "{\"ended\":\"b\"}"),
+            "{\"file\":\"" + dropped.getAbsolutePath() + "\",\"status\":null}",
+            entry(removed, "{\"ended\":\"b\"}"));
+
+        statuses().start();
+
+        assertFalse(dropped.exists());
+        assertFalse(removed.getParentFile().exists());
+    }
+
+    @Test
+    public void recoveryKeepsStatusesFailingToWrite() throws Exception {
+        File unwritable = new File(run, "script.sh-status.json");
+        assertTrue(new File(unwritable, "blocking").mkdirs());
+        journal(entry(unwritable, "{\"ended\":\"b\"}"));
+
+        statuses().start();
+
+        assertTrue(Files.toString(journal, UTF_8).contains(unwritable.getAbsolutePath()));
+    }
+
+    @Test
+    public void compactionKeepsOnlyStatusesNotEnded() throws Exception {
+        File running = new File(run, "running.sh-status.json");
+        File ended = new File(run, "ended.sh-status.json");
+        RunStatuses statuses = statuses();
+        statuses.start();
+        statuses.update(running, ImmutableMap.of("started", "a"));
+        statuses.update(ended, ImmutableMap.of("started", "a", "ended", "b"));
+
+        statuses.stop();
+
+        assertEquals(ImmutableMap.of("ended", "b", "started", "a"), written(ended));
+        String compacted = Files.toString(journal, UTF_8);
+        assertTrue(compacted.contains(running.getAbsolutePath()));
+        assertFalse(compacted.contains(ended.getAbsolutePath()));
+    }
+
+    @Test
+    public void compactionKeepsStatusesFailingToWrite() throws Exception {
+        File unwritable = new File(run, "script.sh-status.json");
+        // a non-empty directory in place of the status file can't be replaced
+        assertTrue(new File(unwritable, "blocking").mkdirs());
+        RunStatuses statuses = statuses();
+        statuses.start();
+        statuses.update(unwritable, ImmutableMap.of("started", "a", "ended", "b"));
+
+        statuses.stop();
+
+        assertTrue(Files.toString(journal, UTF_8).contains(unwritable.getAbsolutePath()));
+    }
+}
@@ -0,0 +1,116 @@
+package alexh.ci.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import alexh.ci.ProcessKiller;
+import alexh.ci.ProcessSampler;
+import alexh.ci.RunContext;
+import alexh.ci.RunMetrics;
+import alexh.ci.RunScheduler;
+import alexh.ci.RunStatuses;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BooleanSupplier;
+
+public class RunQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService scripts = Executors.newFixedThreadPool(2);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private File release;
+    private JobCatalog catalog;
+    private RunQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        release = new File(folder.getRoot(), "release");
+        RunContext context = new RunContext(new RunStatuses(timer), new RunMetrics(new MetricRegistry()),
+            new ProcessSampler(Duration.seconds(0), timer), new ProcessKiller(timer, scripts), Optional.empty());
+        catalog = new JobCatalog(folder.newFolder("jobs"), context);
+        catalog.start();
+        queue = new RunQueue(catalog, new RunScheduler(scripts, 2, 0, new HashMap<>()),
+            new WorkDirectories(WorkDirectories.Mode.SHARED, scripts), timer, Optional.empty());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        catalog.stop();
+        scripts.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /** @return job whose runs wait until released */
+    private Job.WrittenJob waitingJob() {
+        Script script = new Script();
+        script.code = "#!/bin/sh\nwhile [ ! -f '" + release.getAbsolutePath() + "' ]; do sleep 0.05; done";
+        Job job = new Job();
+        job.okScript = script;
+        return catalog.create(job);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void coalescesRequestsWhileRunActive() throws Exception {
+        Job.WrittenJob job = waitingJob();
+
+        assertEquals(1, queue.request(job, 0).get("run"));
+        Map<String, Object> second = queue.request(job, 0);
+        Map<String, Object> third = queue.request(job, 5);
+
+        assertEquals(true, second.get("pending"));
+        assertEquals(1, second.get("coalesced"));
+        assertEquals(2, third.get("coalesced"));
+        assertEquals(1, queue.pendingRuns());
+
+        assertTrue(release.createNewFile());
+        await(() -> queue.trackedJobs() == 0);
+        assertEquals(2, job.runIds().count());
+        assertEquals(0, queue.pendingRuns());
+    }
+
+    @Test
+    public void startsRightAwayOnceIdle() throws Exception {
+        Job.WrittenJob job = waitingJob();
+        assertTrue(release.createNewFile());
+
+        assertEquals(1, queue.request(job, 0).get("run"));
+        await(() -> queue.trackedJobs() == 0);
+
+        assertEquals(2, queue.request(job, 0).get("run"));
+        await(() -> queue.trackedJobs() == 0);
+    }
+
+    @Test
+    public void forgetsPendingRunOfDeletedJob() throws Exception {
+        Job.WrittenJob job = waitingJob();
+        queue.request(job, 0);
+        queue.request(job, 0);
+
+        catalog.delete(job.id);
+        assertTrue(release.createNewFile());
+
+        await(() -> queue.trackedJobs() == 0);
+        assertEquals(0, queue.pendingRuns());
+    }
+}